@@ -0,0 +1,144 @@
+package ca.uhn.fhir.federator;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.antlr.v4.runtime.CharStreams;
+import org.antlr.v4.runtime.CommonTokenStream;
+import org.antlr.v4.runtime.ParserRuleContext;
+import org.antlr.v4.runtime.Token;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.federator.FederatorProperties.Planner;
+import ca.uhn.fhir.federator.FederatorProperties.ResourceConfig;
+import ca.uhn.fhir.federator.FhirUrlParser.SContext;
+import ca.uhn.fhir.federator.ast.Node;
+
+/**
+ * Throughput of the query front end, from the query to the tree of nodes, per stage. Run with
+ * {@code mvn -Pjmh test-compile exec:exec}; the GC profiler adds the allocation rate.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FrontEndBenchmark {
+
+  private static final Map<String, String> QUERIES =
+      Map.of(
+          "simple", "Patient?name=Sarah,Jones&gender=female&_count=10",
+          "chained",
+              "Observation?subject:Patient.general-practitioner:Practitioner.name=Sarah"
+                  + "&code=http://loinc.org|29463-7",
+          "has",
+              "Patient?_has:Observation:patient:_has:AuditEvent:entity:agent:Practitioner.name=jd",
+          "include",
+              "MedicationDispense?_include=MedicationDispense:prescription"
+                  + "&_include:iterate=MedicationRequest:performer");
+
+  @Param({"simple", "chained", "has", "include"})
+  public String shape;
+
+  private String query;
+  private SContext tree;
+  private FhirUrlAnalyser analyser;
+  private QueryPlan plan;
+  private FederatedSearchProvider provider;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    query = QUERIES.get(shape);
+    tree = FhirUrlParsing.parse(new FhirUrlLexer(CharStreams.fromString(query)).getAllTokens());
+    analyser = new FhirUrlAnalyser();
+    tree.accept(analyser);
+
+    FhirContext ctx = FhirContext.forR4Cached();
+    ClientRegistry cr = new ClientRegistry(List.of(), ctx, new FanoutExecutor(null), null);
+    ResourceRegistry rr = new ResourceRegistry(new ResourceConfig());
+    SearchParam2FhirPathRegistry s2f = new SearchParam2FhirPathRegistry();
+    for (String searchParam :
+        List.of(
+            "Patient.name",
+            "Patient.gender",
+            "Patient.general-practitioner",
+            "Observation.subject",
+            "Observation.code",
+            "Observation.patient",
+            "AuditEvent.entity",
+            "AuditEvent.agent",
+            "Practitioner.name")) {
+      s2f.put(searchParam, searchParam);
+    }
+    // measures the parser, not the plan cache
+    Planner planner = new Planner();
+    planner.setPlanCache(0);
+    provider =
+        new FederatedSearchProvider(cr, rr, ctx, s2f, new QueryPlanner(cr, rr, planner), null);
+    plan = provider.getPlan(query);
+  }
+
+  @Benchmark
+  public List<Token> lex() {
+    return new FhirUrlLexer(CharStreams.fromString(query)).getAllTokens();
+  }
+
+  /** The parser as the tests use it: one stage, LL prediction. */
+  @Benchmark
+  public SContext parseLL() {
+    return new FhirUrlParser(new CommonTokenStream(new FhirUrlLexer(CharStreams.fromString(query))))
+        .s();
+  }
+
+  @Benchmark
+  public SContext parseTwoStage() {
+    return FhirUrlParsing.parse(new FhirUrlLexer(CharStreams.fromString(query)).getAllTokens());
+  }
+
+  @Benchmark
+  public FhirUrlAnalyser analyse() {
+    FhirUrlAnalyser retVal = new FhirUrlAnalyser();
+    tree.accept(retVal);
+    return retVal;
+  }
+
+  @Benchmark
+  public List<ParsedUrl> createUrls() {
+    List<ParsedUrl> retVal = new ArrayList<>();
+    List<ParserRuleContext> parameters = new ArrayList<>(analyser.getAndParameters());
+    parameters.addAll(analyser.getIncludeParameters());
+    for (ParserRuleContext httpParam : parameters) {
+      boolean dependent = analyser.getIncludeParameters().contains(httpParam);
+      for (ParserRuleContext resource : analyser.getResourcesForHttpParam(dependent, httpParam)) {
+        new ParsedUrlCreator(resource, httpParam, analyser).createUrl().ifPresent(retVal::add);
+      }
+    }
+    return retVal;
+  }
+
+  @Benchmark
+  public Node createAST() {
+    return provider.createAST(plan);
+  }
+
+  /** The whole front end, from the query to the tree of nodes. */
+  @Benchmark
+  public Node plan() {
+    return provider.createAST(provider.getPlan(query));
+  }
+}
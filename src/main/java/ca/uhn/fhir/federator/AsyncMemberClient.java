@@ -0,0 +1,190 @@
+package ca.uhn.fhir.federator;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpRequest.BodyPublishers;
+import java.net.http.HttpResponse;
+import java.net.http.HttpResponse.BodyHandlers;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Optional;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Bundle;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.federator.FederatorProperties.ServerDesc;
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.api.EncodingEnum;
+import ca.uhn.fhir.rest.client.exceptions.FhirClientConnectionException;
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+
+/**
+ * Non-blocking client for one member server. A request does not hold a thread while it waits for
+ * the member; responses are parsed on the small shared pool of the {@link FanoutExecutor}.
+ *
+ * <p>At most {@code maxInFlight} requests are sent to the member at the same time, further
+ * requests wait in a queue without holding a thread.
+ *
+ * <p>Only the GET searches of a step and their next pages use this client. POST searches, batch
+ * Bundles, lazily read results, count probes, and the reads and writes of the resource providers
+ * go through the blocking HAPI client.
+ */
+public class AsyncMemberClient {
+  /** User data of a parsed response: the length of its body in bytes. */
+  public static final String RESPONSE_BYTES = AsyncMemberClient.class.getName() + ".bytes";
+
+  private final FhirContext ctx;
+  private final String base;
+  private final HttpClient client;
+  private final Duration readTimeout;
+  private final int maxInFlight;
+  private final Queue<Runnable> waiting = new ArrayDeque<>();
+  private int inFlight;
+
+  public AsyncMemberClient(FhirContext ctx, ServerDesc member, Executor executor, int maxInFlight) {
+    this.ctx = ctx;
+    this.base = member.getUrl();
+    this.maxInFlight = maxInFlight;
+    this.readTimeout =
+        Optional.ofNullable(member.getReadTimeout()).map(Duration::ofMillis).orElse(null);
+    HttpClient.Builder builder =
+        HttpClient.newBuilder().executor(executor).followRedirects(HttpClient.Redirect.NORMAL);
+    Optional.ofNullable(member.getConnectTimeout())
+        .ifPresent(timeout -> builder.connectTimeout(Duration.ofMillis(timeout)));
+    this.client = builder.build();
+  }
+
+  public CompletableFuture<Bundle> search(String url) {
+    return get(url, Bundle.class);
+  }
+
+  public <T extends IBaseResource> CompletableFuture<T> get(String url, Class<T> type) {
+    return send(newRequest(url).GET().build(), type);
+  }
+
+  /** Posts a batch or transaction Bundle to the base of the member. */
+  public CompletableFuture<Bundle> transaction(Bundle bundle) {
+    String body = ctx.newJsonParser().encodeResourceToString(bundle);
+    HttpRequest request =
+        newRequest(base)
+            .header(Constants.HEADER_CONTENT_TYPE, Constants.CT_FHIR_JSON_NEW)
+            .POST(BodyPublishers.ofString(body))
+            .build();
+    return send(request, Bundle.class);
+  }
+
+  /** Strips the wrapper of a failed future, so callers see the exception of the request. */
+  public static RuntimeException unwrap(Throwable e) {
+    Throwable cause = e;
+    while ((cause instanceof CompletionException || cause instanceof ExecutionException)
+        && cause.getCause() != null) {
+      cause = cause.getCause();
+    }
+    if (cause instanceof RuntimeException) {
+      return (RuntimeException) cause;
+    }
+    return new FhirClientConnectionException(cause);
+  }
+
+  private HttpRequest.Builder newRequest(String url) {
+    HttpRequest.Builder retVal =
+        HttpRequest.newBuilder(URI.create(url))
+            .header(Constants.HEADER_ACCEPT, Constants.CT_FHIR_JSON_NEW);
+    if (readTimeout != null) {
+      retVal.timeout(readTimeout);
+    }
+    return retVal;
+  }
+
+  /**
+   * Sends the request once the member has a free slot. Cancelling the returned future frees the
+   * slot at once and cancels the exchange, or drops the request while it still waits.
+   */
+  private <T extends IBaseResource> CompletableFuture<T> send(HttpRequest request, Class<T> type) {
+    CompletableFuture<T> retVal = new CompletableFuture<>();
+    AtomicBoolean released = new AtomicBoolean();
+    Runnable releaseOnce =
+        () -> {
+          if (released.compareAndSet(false, true)) {
+            release();
+          }
+        };
+    admit(
+        () -> {
+          if (retVal.isDone()) {
+            // cancelled while waiting for a slot
+            releaseOnce.run();
+            return;
+          }
+          CompletableFuture<HttpResponse<byte[]>> exchange =
+              client.sendAsync(request, BodyHandlers.ofByteArray());
+          retVal.whenComplete(
+              (result, e) -> {
+                if (retVal.isCancelled()) {
+                  exchange.cancel(true);
+                  releaseOnce.run();
+                }
+              });
+          exchange
+              .thenApply(response -> parse(request, response, type))
+              .whenComplete(
+                  (result, e) -> {
+                    releaseOnce.run();
+                    if (e == null) {
+                      retVal.complete(result);
+                    } else {
+                      retVal.completeExceptionally(unwrap(e));
+                    }
+                  });
+        });
+    return retVal;
+  }
+
+  private <T extends IBaseResource> T parse(
+      HttpRequest request, HttpResponse<byte[]> response, Class<T> type) {
+    int status = response.statusCode();
+    if (status >= 400) {
+      throw BaseServerResponseException.newInstance(
+          status, "HTTP " + status + " " + request.method() + " " + request.uri());
+    }
+    // FHIR resources are always UTF-8
+    String body = new String(response.body(), StandardCharsets.UTF_8);
+    EncodingEnum encoding = EncodingEnum.detectEncoding(body);
+    T retVal = encoding.newParser(ctx).parseResource(type, body);
+    retVal.setUserData(RESPONSE_BYTES, response.body().length);
+    return retVal;
+  }
+
+  private void admit(Runnable request) {
+    synchronized (waiting) {
+      if (maxInFlight > 0 && inFlight >= maxInFlight) {
+        waiting.add(request);
+        return;
+      }
+      inFlight++;
+    }
+    request.run();
+  }
+
+  /** Hands the slot of a finished request to the next waiting one. */
+  private void release() {
+    Runnable next;
+    synchronized (waiting) {
+      next = waiting.poll();
+      if (next == null) {
+        inFlight--;
+        return;
+      }
+    }
+    next.run();
+  }
+}
@@ -0,0 +1,261 @@
+package ca.uhn.fhir.federator;
+
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Queue;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+import org.apache.commons.lang3.StringUtils;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Bundle.BundleLinkComponent;
+
+import ca.uhn.fhir.rest.api.SearchStyleEnum;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+
+/**
+ * Walks the pages of a member search result by following the {@code next} links. The next page is
+ * already requested while the caller processes the current one.
+ */
+public class BundlePager implements Iterator<Bundle>, AutoCloseable {
+  private static final org.slf4j.Logger ourLog =
+      org.slf4j.LoggerFactory.getLogger(BundlePager.class);
+
+  private final ClientRegistry cr;
+  private final FanoutExecutor executor;
+  private final String base;
+  private final IGenericClient client;
+  private final int maxPages;
+  private final Deadline deadline;
+  private final ParsedUrl postSearch;
+  private String firstUrl;
+  private Bundle firstPage;
+  private Future<Bundle> pending;
+  private Queue<Future<Bundle>> completion;
+  private int pages;
+  private final long startMillis = System.currentTimeMillis();
+
+  public BundlePager(ClientRegistry cr, String base, String url, int maxPages, Deadline deadline) {
+    this(cr, base, url, null, null, maxPages, deadline);
+  }
+
+  /** Requests the first page as {@code POST [base]/[type]/_search} with a form encoded body. */
+  public BundlePager(
+      ClientRegistry cr, String base, ParsedUrl search, int maxPages, Deadline deadline) {
+    this(cr, base, base + "/" + search, search, null, maxPages, deadline);
+  }
+
+  /** Continues from a first page that was already received, e.g. in a batch-response. */
+  public BundlePager(
+      ClientRegistry cr, String base, Bundle firstPage, int maxPages, Deadline deadline) {
+    this(cr, base, null, null, firstPage, maxPages, deadline);
+  }
+
+  private BundlePager(
+      ClientRegistry cr,
+      String base,
+      String url,
+      ParsedUrl postSearch,
+      Bundle firstPage,
+      int maxPages,
+      Deadline deadline) {
+    this.cr = cr;
+    this.executor = cr.getExecutor();
+    this.base = base;
+    this.client = cr.getClient(base);
+    this.maxPages = maxPages;
+    this.deadline = deadline;
+    this.postSearch = postSearch;
+    this.firstUrl = url;
+    this.firstPage = firstPage;
+  }
+
+  @Override
+  public boolean hasNext() {
+    return firstPage != null || firstUrl != null || pending != null;
+  }
+
+  @Override
+  public Bundle next() {
+    Bundle bundle;
+    if (firstPage != null) {
+      bundle = firstPage;
+      firstPage = null;
+    } else if (firstUrl != null) {
+      String url = firstUrl;
+      firstUrl = null;
+      bundle = join(executor.submitRequest(() -> fetch(url, true)));
+    } else if (pending != null) {
+      bundle = join(pending);
+      pending = null;
+    } else {
+      throw new NoSuchElementException();
+    }
+    pages++;
+    String nextUrl = getNextUrl(bundle);
+    if (nextUrl != null) {
+      if (pages >= maxPages) {
+        ourLog.warn("Stopped after {} pages: {}", pages, nextUrl);
+        FanoutScope.warn(ParameterExecutor.cutOff(base, pages + " pages"));
+      } else if (deadline.isExpired()) {
+        ourLog.warn("Deadline expired after {} pages: {}", pages, nextUrl);
+        FanoutScope.warn(ParameterExecutor.deadlineExpired(base));
+      } else {
+        pending = executor.submitRequest(() -> fetch(nextUrl, false), completion);
+      }
+    }
+    return bundle;
+  }
+
+  /** A page, an empty one when the deadline expires first. */
+  private Bundle join(Future<Bundle> page) {
+    try {
+      return executor.join(page, deadline);
+    } catch (DeadlineExceededException e) {
+      ourLog.warn("Deadline expired after {} pages: {}", pages, base);
+      FanoutScope.warn(ParameterExecutor.deadlineExpired(base));
+      return new Bundle();
+    } catch (RejectedExecutionException e) {
+      // the rejected request added the warning
+      ourLog.warn("Page request rejected after {} pages: {}", pages, base);
+      return new Bundle();
+    }
+  }
+
+  /**
+   * Requests the first page now instead of in {@link #next}. From then on every requested page adds
+   * itself to {@code completion} when it arrives, see {@link #getPending}.
+   */
+  public void start(Queue<Future<Bundle>> completion) {
+    this.completion = completion;
+    if (firstUrl != null) {
+      String url = firstUrl;
+      firstUrl = null;
+      pending = executor.submitRequest(() -> fetch(url, true), completion);
+    }
+  }
+
+  /** The requested page that {@link #next} returns, null when none is requested. */
+  public Future<Bundle> getPending() {
+    return pending;
+  }
+
+  public int getPages() {
+    return pages;
+  }
+
+  public long getStartMillis() {
+    return startMillis;
+  }
+
+  /** Cancels the prefetch of the next page, if any. */
+  @Override
+  public void close() {
+    if (pending != null) {
+      pending.cancel(true);
+      pending = null;
+    }
+    firstUrl = null;
+    firstPage = null;
+  }
+
+  /**
+   * Requests one page. Failures give an empty page, except a first page rejected with 400 or 414:
+   * that exception is rethrown so the caller can retry with a shorter URL.
+   */
+  private Bundle fetch(String url, boolean first) {
+    long hedgeAfter = cr.getHedgeDelay(base);
+    long start = System.nanoTime();
+    Supplier<Bundle> request =
+        first && postSearch != null ? () -> post(postSearch) : () -> search(url);
+    try {
+      Bundle bundle;
+      if (hedgeAfter < 0) {
+        bundle = request.get();
+      } else {
+        bundle = executor.hedge(request::get, hedgeAfter, deadline);
+      }
+      cr.recordSuccess(base, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+      return bundle;
+    } catch (DeadlineExceededException | RejectedExecutionException e) {
+      throw e;
+    } catch (RuntimeException e) {
+      if (Thread.currentThread().isInterrupted()) {
+        // cancelled by the caller, not a failure of the member
+        throw e;
+      }
+      cr.recordError(base, e);
+      if (first && isRejected(e)) {
+        throw e;
+      }
+      ourLog.error("Request failed: {} {}", url, e.getMessage());
+      Explain.Step step = Explain.current();
+      if (step != null) {
+        step.addError(url, e.getMessage());
+      }
+      return new Bundle();
+    }
+  }
+
+  static boolean isRejected(RuntimeException e) {
+    if (!(e instanceof BaseServerResponseException)) {
+      return false;
+    }
+    int status = ((BaseServerResponseException) e).getStatusCode();
+    return status == 400 || status == 414;
+  }
+
+  private Bundle search(String url) {
+    return client.search().byUrl(url).returnBundle(Bundle.class).execute();
+  }
+
+  private Bundle post(ParsedUrl search) {
+    Map<String, List<String>> params = new HashMap<>();
+    List<ParsedUrl> parameters = new ArrayList<>();
+    parameters.add(search);
+    parameters.addAll(search.getConjuncts());
+    for (ParsedUrl parameter : parameters) {
+      if (parameter.getKey() != null && !parameter.getKey().isEmpty()) {
+        params
+            .computeIfAbsent(parameter.getKeyAsString(), k -> new ArrayList<>())
+            .add(decode(parameter.getValue()));
+      }
+    }
+    return client
+        .search()
+        .forResource(search.getResource())
+        .whereMap(params)
+        .usingStyle(SearchStyleEnum.POST)
+        .returnBundle(Bundle.class)
+        .execute();
+  }
+
+  /**
+   * The values of a ParsedUrl are URL encoded, the client encodes the form body itself. A comma
+   * inside a value ({@code %2C}) is escaped so that it does not separate values.
+   */
+  private static String decode(String value) {
+    return Arrays.stream(StringUtils.split(value, ','))
+        .map(x -> URLDecoder.decode(x, StandardCharsets.UTF_8).replace(",", "\\,"))
+        .collect(Collectors.joining(","));
+  }
+
+  static String getNextUrl(Bundle bundle) {
+    return bundle.getLink().stream()
+        .filter(link -> "next".equals(link.getRelation()))
+        .map(BundleLinkComponent::getUrl)
+        .findFirst()
+        .orElse(null);
+  }
+}
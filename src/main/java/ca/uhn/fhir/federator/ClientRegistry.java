@@ -4,24 +4,91 @@ import java.util.Collection;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.hl7.fhir.r4.model.CapabilityStatement;
+import org.hl7.fhir.r4.model.CapabilityStatement.SystemRestfulInteraction;
 
 import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.federator.FederatorProperties.CircuitBreaker;
+import ca.uhn.fhir.federator.FederatorProperties.ServerDesc;
 import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.client.apache.ApacheRestfulClientFactory;
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
 
 public class ClientRegistry {
+  private static final org.slf4j.Logger ourLog =
+      org.slf4j.LoggerFactory.getLogger(ClientRegistry.class);
+
+  private static final int LATENCY_WINDOW = 200;
+  private static final int MIN_SAMPLES_FOR_HEDGING = 20;
+  private static final long BATCH_SUPPORT_RETRY_MILLIS = 60000;
 
   private final Map<String, IGenericClient> map = new LinkedHashMap<>();
+  private final Map<String, ServerDesc> members = new LinkedHashMap<>();
+  private final Map<String, LatencyWindow> latencies = new LinkedHashMap<>();
+  private final Map<String, MemberCircuitBreaker> breakers = new LinkedHashMap<>();
+  private final Map<String, OrBatcher> batchers = new LinkedHashMap<>();
+  private final Map<String, Boolean> batchSupport = new ConcurrentHashMap<>();
+  // when to read the CapabilityStatement again after it could not be read
+  private final Map<String, Long> batchSupportRetryAt = new ConcurrentHashMap<>();
+  private final Map<String, AsyncMemberClient> asyncClients = new LinkedHashMap<>();
+  private final FanoutExecutor executor;
+  private FhirPathEngines fhirPathEngines;
 
-  public ClientRegistry(List<String> bases, FhirContext ctx) {
+  public ClientRegistry(
+      List<ServerDesc> servers,
+      FhirContext ctx,
+      FanoutExecutor executor,
+      CircuitBreaker circuitBreaker) {
+
+    servers.stream()
+        .forEach(
+            server -> {
+              IGenericClient client = newClient(ctx, server);
+              client.registerInterceptor(new Explain.BytesInterceptor());
+              map.put(server.getUrl(), client);
+              members.put(server.getUrl(), server);
+              latencies.put(server.getUrl(), new LatencyWindow(LATENCY_WINDOW));
+              breakers.put(
+                  server.getUrl(), new MemberCircuitBreaker(server.getUrl(), circuitBreaker));
+              batchers.put(server.getUrl(), new OrBatcher(server));
+              if (executor.isAsync()) {
+                asyncClients.put(
+                    server.getUrl(),
+                    new AsyncMemberClient(
+                        ctx,
+                        server,
+                        executor.getAsyncExecutor(),
+                        executor.getMaxInFlightPerMember()));
+              }
+            });
+    this.executor = executor;
+  }
 
-    bases.stream().forEach(base -> map.put(base, ctx.newRestfulGenericClient(base)));
+  private static IGenericClient newClient(FhirContext ctx, ServerDesc server) {
+    if (server.getConnectTimeout() == null && server.getReadTimeout() == null) {
+      return ctx.newRestfulGenericClient(server.getUrl());
+    }
+    // the factory of the context is shared, so timeouts per member need their own factory
+    ApacheRestfulClientFactory factory = new ApacheRestfulClientFactory(ctx);
+    factory.setServerValidationMode(ctx.getRestfulClientFactory().getServerValidationMode());
+    Optional.ofNullable(server.getConnectTimeout()).ifPresent(factory::setConnectTimeout);
+    Optional.ofNullable(server.getReadTimeout()).ifPresent(factory::setSocketTimeout);
+    return factory.newGenericClient(server.getUrl());
   }
 
   IGenericClient getClient(String base) {
     return map.get(base);
   }
 
+  /** The non-blocking client of the member, null unless the async transport is configured. */
+  AsyncMemberClient getAsyncClient(String base) {
+    return asyncClients.get(base);
+  }
+
   Collection<IGenericClient> getAll() {
     return map.values();
   }
@@ -29,4 +96,140 @@ public class ClientRegistry {
   Set<String> getKeySet() {
     return map.keySet();
   }
+
+  /** The member configuration, an empty one for servers that are not listed as member. */
+  ServerDesc getMember(String base) {
+    ServerDesc member = members.get(base);
+    if (member == null) {
+      member = new ServerDesc();
+      member.setUrl(base);
+    }
+    return member;
+  }
+
+  /**
+   * Whether requests may be sent to the member, false while its circuit breaker is open. Servers
+   * that are not listed as member are always available.
+   */
+  boolean isAvailable(String base) {
+    MemberCircuitBreaker breaker = breakers.get(base);
+    return breaker == null || breaker.allowRequest();
+  }
+
+  void recordSuccess(String base, long millis) {
+    LatencyWindow window = latencies.get(base);
+    if (window != null) {
+      window.record(millis);
+    }
+    MemberCircuitBreaker breaker = breakers.get(base);
+    if (breaker != null) {
+      breaker.recordSuccess(millis);
+    }
+    OrBatcher batcher = batchers.get(base);
+    if (batcher != null) {
+      batcher.onResponse(millis);
+    }
+  }
+
+  /**
+   * Whether the member accepts searches combined in a batch Bundle. Unless configured, this is read
+   * once from the CapabilityStatement of the member; when that fails, batches are not used until it
+   * is read again a minute later.
+   */
+  boolean supportsBatch(String base) {
+    Boolean configured = getMember(base).getBatch();
+    if (configured != null) {
+      return configured;
+    }
+    Boolean known = batchSupport.get(base);
+    if (known != null) {
+      return known;
+    }
+    Long retryAt = batchSupportRetryAt.get(base);
+    if (retryAt != null && System.currentTimeMillis() < retryAt) {
+      return false;
+    }
+    // not inside computeIfAbsent, which would block other members while the member answers
+    Boolean retVal = readBatchSupport(base);
+    if (retVal == null) {
+      batchSupportRetryAt.put(base, System.currentTimeMillis() + BATCH_SUPPORT_RETRY_MILLIS);
+      return false;
+    }
+    batchSupport.put(base, retVal);
+    batchSupportRetryAt.remove(base);
+    return retVal;
+  }
+
+  /** Batch support as the CapabilityStatement says, null when it cannot be read. */
+  private Boolean readBatchSupport(String base) {
+    IGenericClient client = map.get(base);
+    if (client == null) {
+      return false;
+    }
+    try {
+      CapabilityStatement cs = client.capabilities().ofType(CapabilityStatement.class).execute();
+      boolean retVal =
+          cs.getRest().stream()
+              .flatMap(rest -> rest.getInteraction().stream())
+              .anyMatch(interaction -> interaction.getCode() == SystemRestfulInteraction.BATCH);
+      ourLog.info("Member {} supports batch: {}", base, retVal);
+      return retVal;
+    } catch (RuntimeException e) {
+      ourLog.warn("No CapabilityStatement for {}, not using batch: {}", base, e.getMessage());
+      return null;
+    }
+  }
+
+  /** The OR batcher of the member, one with the defaults for servers that are not a member. */
+  OrBatcher getBatcher(String base) {
+    OrBatcher batcher = batchers.get(base);
+    return batcher == null ? new OrBatcher(getMember(base)) : batcher;
+  }
+
+  /** Only errors that say something about the health of the member count as failure. */
+  void recordError(String base, RuntimeException e) {
+    if (e instanceof BaseServerResponseException) {
+      // connection errors have no status
+      int status = ((BaseServerResponseException) e).getStatusCode();
+      if (status >= 400 && status < 500) {
+        return;
+      }
+    }
+    MemberCircuitBreaker breaker = breakers.get(base);
+    if (breaker != null) {
+      breaker.recordFailure();
+    }
+  }
+
+  /**
+   * Milliseconds after which a duplicate request is sent to the member: the configured hedge
+   * delay or else the p95 latency of the member. -1 when the member is not hedged.
+   */
+  long getHedgeDelay(String base) {
+    ServerDesc member = getMember(base);
+    if (!Boolean.TRUE.equals(member.getHedge())) {
+      return -1;
+    }
+    if (member.getHedgeDelay() != null) {
+      return member.getHedgeDelay();
+    }
+    LatencyWindow window = latencies.get(base);
+    if (window == null || window.getCount() < MIN_SAMPLES_FOR_HEDGING) {
+      return -1;
+    }
+    return window.getPercentile(95);
+  }
+
+  public FanoutExecutor getExecutor() {
+    return executor;
+  }
+
+  /** The FHIRPath engines that resolve references with this registry, null when there are none. */
+  public FhirPathEngines getFhirPathEngines() {
+    return fhirPathEngines;
+  }
+
+  public void setFhirPathEngines(FhirPathEngines fhirPathEngines) {
+    this.fhirPathEngines = fhirPathEngines;
+  }
 }
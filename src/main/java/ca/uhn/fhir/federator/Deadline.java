@@ -0,0 +1,45 @@
+package ca.uhn.fhir.federator;
+
+import java.util.concurrent.TimeUnit;
+
+/** Point in time by which a federated request has to be answered. */
+public final class Deadline {
+  private static final Deadline NONE = new Deadline(0, false);
+
+  private final long expiresAt;
+  private final boolean bounded;
+
+  private Deadline(long expiresAt, boolean bounded) {
+    this.expiresAt = expiresAt;
+    this.bounded = bounded;
+  }
+
+  public static Deadline none() {
+    return NONE;
+  }
+
+  public static Deadline after(long millis) {
+    return new Deadline(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis), true);
+  }
+
+  public boolean isBounded() {
+    return bounded;
+  }
+
+  public boolean isExpired() {
+    return bounded && System.nanoTime() - expiresAt >= 0;
+  }
+
+  /** Milliseconds left, {@link Long#MAX_VALUE} when there is no deadline. */
+  public long remainingMillis() {
+    if (!bounded) {
+      return Long.MAX_VALUE;
+    }
+    return Math.max(0, TimeUnit.NANOSECONDS.toMillis(expiresAt - System.nanoTime()));
+  }
+
+  @Override
+  public String toString() {
+    return bounded ? "Deadline [remaining=" + remainingMillis() + "ms]" : "Deadline [none]";
+  }
+}
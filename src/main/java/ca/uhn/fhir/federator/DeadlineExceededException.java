@@ -0,0 +1,10 @@
+package ca.uhn.fhir.federator;
+
+/** Thrown when a member request is still running when the deadline of the request expires. */
+public class DeadlineExceededException extends RuntimeException {
+  private static final long serialVersionUID = 1L;
+
+  public DeadlineExceededException(String message) {
+    super(message);
+  }
+}
@@ -1,9 +1,11 @@
 package ca.uhn.fhir.federator;
 
 import ca.uhn.fhir.federator.FederatorProperties.ServerResourceConfig;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.Callable;
 import java.util.stream.Collectors;
-import java.util.stream.Stream;
 
 import org.hl7.fhir.exceptions.FHIRException;
 import org.hl7.fhir.exceptions.PathEngineException;
@@ -21,12 +23,14 @@ public class EvaluationContextWithResolver implements IEvaluationContext {
       org.slf4j.LoggerFactory.getLogger(EvaluationContextWithResolver.class);
   private final IEvaluationContext delegate;
   private final FhirContext ctx;
+  private final ClientRegistry cr;
   private final ResourceRegistry rr;
 
   public EvaluationContextWithResolver(
       IEvaluationContext delegate, FhirContext ctx, ClientRegistry cr, ResourceRegistry rr) {
     this.delegate = delegate;
     this.ctx = ctx;
+    this.cr = cr;
     this.rr = rr;
   }
 
@@ -79,28 +83,57 @@ public class EvaluationContextWithResolver implements IEvaluationContext {
     } else {
       servers = List.of(url.substring(0, till));
     }
-    List<Base> retVal =
-        servers.stream()
-            .flatMap(
-                server -> {
-                  try {
-                    return Stream.of(
-                        (Base)
-                            ctx.newRestfulGenericClient(server)
-                                .read()
-                                .resource(resource)
-                                .withUrl(url)
-                                .execute());
-                  } catch (Throwable e) {
-                    ourLog.error("Reference not resolved:{} {} {}", server, url, e.getMessage());
-                    return Stream.empty();
-                  }
-                })
-            .collect(Collectors.toList());
+    if (cr != null) {
+      servers =
+          servers.stream()
+              .filter(
+                  server -> {
+                    boolean available = cr.isAvailable(server);
+                    if (!available) {
+                      ParameterExecutor.skipMember(server);
+                    }
+                    return available;
+                  })
+              .collect(Collectors.toList());
+    }
+    List<Base> retVal;
+    if (cr == null || cr.getExecutor() == null) {
+      retVal = new ArrayList<>();
+      for (String server : servers) {
+        retVal.add(read(server, resource, url));
+      }
+    } else {
+      retVal =
+          cr.getExecutor()
+              .invokeAll(
+                  servers.stream()
+                      .map(server -> (Callable<Base>) () -> read(server, resource, url))
+                      .collect(Collectors.toList()));
+    }
+    retVal = retVal.stream().filter(Objects::nonNull).collect(Collectors.toList());
 
     return retVal.isEmpty() ? null : retVal.get(0);
   }
 
+  private Base read(String server, String resource, String url) {
+    long start = System.currentTimeMillis();
+    try {
+      Base retVal =
+          (Base)
+              ctx.newRestfulGenericClient(server).read().resource(resource).withUrl(url).execute();
+      if (cr != null) {
+        cr.recordSuccess(server, System.currentTimeMillis() - start);
+      }
+      return retVal;
+    } catch (Throwable e) {
+      if (cr != null && e instanceof RuntimeException) {
+        cr.recordError(server, (RuntimeException) e);
+      }
+      ourLog.error("Reference not resolved:{} {} {}", server, url, e.getMessage());
+      return null;
+    }
+  }
+
   @Override
   public boolean conformsToProfile(Object appContext, Base item, String url) throws FHIRException {
     return delegate.conformsToProfile(appContext, item, url);
@@ -0,0 +1,229 @@
+package ca.uhn.fhir.federator;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import java.util.function.ToIntFunction;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.hl7.fhir.r4.model.IntegerType;
+import org.hl7.fhir.r4.model.Parameters;
+import org.hl7.fhir.r4.model.Parameters.ParametersParameterComponent;
+import org.hl7.fhir.r4.model.StringType;
+
+import ca.uhn.fhir.rest.client.api.IClientInterceptor;
+import ca.uhn.fhir.rest.client.api.IHttpRequest;
+import ca.uhn.fhir.rest.client.api.IHttpResponse;
+
+/**
+ * The executed plan of a federated search, for {@code _explain}: a tree of steps with their wall
+ * time, number of results, the member searches they issued, response bytes and errors.
+ *
+ * <p>The step being executed is kept per thread; tasks of the {@link FanoutExecutor} run in the
+ * step that submitted them. Nothing is recorded when no search is being explained.
+ */
+public class Explain {
+  private static final ThreadLocal<Step> CURRENT = new ThreadLocal<>();
+
+  public static final String PARAMETER = "_explain";
+
+  /** One node of the plan. */
+  public static class Step {
+    private final String name;
+    private final String detail;
+    private final List<Step> steps = Collections.synchronizedList(new ArrayList<>());
+    private final List<ParametersParameterComponent> searches =
+        Collections.synchronizedList(new ArrayList<>());
+    private final List<ParametersParameterComponent> errors =
+        Collections.synchronizedList(new ArrayList<>());
+    private final AtomicLong bytes = new AtomicLong();
+    private volatile long millis;
+    private volatile Integer resources;
+
+    public Step(String name, String detail) {
+      this.name = name;
+      this.detail = detail;
+    }
+
+    /** A member search with all its pages. */
+    public void addSearch(String url, int pages, int resources, long millis) {
+      ParametersParameterComponent search = new ParametersParameterComponent().setName("search");
+      search.addPart().setName("url").setValue(new StringType(url));
+      search.addPart().setName("pages").setValue(new IntegerType(pages));
+      search.addPart().setName("resources").setValue(new IntegerType(resources));
+      search.addPart().setName("millis").setValue(new IntegerType(toInt(millis)));
+      searches.add(search);
+    }
+
+    public void addError(String url, String message) {
+      ParametersParameterComponent error = new ParametersParameterComponent().setName("error");
+      error.addPart().setName("url").setValue(new StringType(url));
+      error.addPart().setName("message").setValue(new StringType(message));
+      errors.add(error);
+    }
+
+    public void addBytes(long count) {
+      bytes.addAndGet(count);
+    }
+
+    public Parameters toParameters() {
+      Parameters retVal = new Parameters();
+      retVal.addParameter(toComponent());
+      return retVal;
+    }
+
+    private ParametersParameterComponent toComponent() {
+      ParametersParameterComponent retVal = new ParametersParameterComponent().setName(name);
+      if (detail != null) {
+        retVal.addPart().setName("detail").setValue(new StringType(detail));
+      }
+      retVal.addPart().setName("millis").setValue(new IntegerType(toInt(millis)));
+      if (resources != null) {
+        retVal.addPart().setName("resources").setValue(new IntegerType(resources));
+      }
+      if (bytes.get() > 0) {
+        retVal.addPart().setName("bytes").setValue(new IntegerType(toInt(bytes.get())));
+      }
+      synchronized (searches) {
+        searches.forEach(retVal::addPart);
+      }
+      synchronized (errors) {
+        errors.forEach(retVal::addPart);
+      }
+      synchronized (steps) {
+        steps.forEach(step -> retVal.addPart(step.toComponent()));
+      }
+      return retVal;
+    }
+
+    private static int toInt(long value) {
+      return (int) Math.min(value, Integer.MAX_VALUE);
+    }
+  }
+
+  /**
+   * Counts the bytes of the responses of a member as they are read, after decompression. A response
+   * that is not read through the Apache HTTP client is not counted.
+   */
+  public static class BytesInterceptor implements IClientInterceptor {
+    @Override
+    public void interceptRequest(IHttpRequest theRequest) {
+      // nothing to do before the request
+    }
+
+    @Override
+    public void interceptResponse(IHttpResponse theResponse) {
+      Step step = CURRENT.get();
+      if (step == null || !(theResponse.getResponse() instanceof HttpResponse)) {
+        return;
+      }
+      HttpResponse response = (HttpResponse) theResponse.getResponse();
+      if (response.getEntity() != null) {
+        // the body is read after the interceptors
+        response.setEntity(new CountingEntity(response.getEntity(), step));
+      }
+    }
+  }
+
+  private static class CountingEntity extends HttpEntityWrapper {
+    private final Step step;
+
+    CountingEntity(HttpEntity wrapped, Step step) {
+      super(wrapped);
+      this.step = step;
+    }
+
+    @Override
+    public InputStream getContent() throws IOException {
+      return new FilterInputStream(super.getContent()) {
+        @Override
+        public int read() throws IOException {
+          int retVal = super.read();
+          if (retVal >= 0) {
+            step.addBytes(1);
+          }
+          return retVal;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+          int retVal = super.read(b, off, len);
+          if (retVal > 0) {
+            step.addBytes(retVal);
+          }
+          return retVal;
+        }
+      };
+    }
+  }
+
+  private Explain() {}
+
+  /** The step of the calling thread, null when nothing is explained. */
+  public static Step current() {
+    return CURRENT.get();
+  }
+
+  /** Executes the body as the given step. */
+  public static <T> T run(Step step, Supplier<T> body) {
+    Step outer = CURRENT.get();
+    CURRENT.set(step);
+    long start = System.currentTimeMillis();
+    try {
+      return body.get();
+    } finally {
+      step.millis = System.currentTimeMillis() - start;
+      restore(outer);
+    }
+  }
+
+  /**
+   * Executes the body as a new step below the current one, with the number of results it gave.
+   * Only executes the body when nothing is explained.
+   */
+  public static <T> T step(
+      String name, String detail, Supplier<T> body, ToIntFunction<T> resources) {
+    Step parent = CURRENT.get();
+    if (parent == null) {
+      return body.get();
+    }
+    Step step = new Step(name, detail);
+    parent.steps.add(step);
+    T retVal = run(step, body);
+    step.resources = resources.applyAsInt(retVal);
+    return retVal;
+  }
+
+  /** Makes the task run in the step of the calling thread. */
+  static <T> Callable<T> wrap(Callable<T> task) {
+    Step step = CURRENT.get();
+    if (step == null) {
+      return task;
+    }
+    return () -> {
+      Step outer = CURRENT.get();
+      CURRENT.set(step);
+      try {
+        return task.call();
+      } finally {
+        restore(outer);
+      }
+    };
+  }
+
+  private static void restore(Step outer) {
+    if (outer == null) {
+      CURRENT.remove();
+    } else {
+      CURRENT.set(outer);
+    }
+  }
+}
@@ -0,0 +1,556 @@
+package ca.uhn.fhir.federator;
+
+import java.lang.reflect.Method;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+
+import ca.uhn.fhir.federator.FederatorProperties.Fanout;
+
+/**
+ * Executor on which all blocking requests towards the member servers are executed. By default
+ * this is a bounded thread pool; in {@code virtual} mode every request gets its own virtual
+ * thread, when the runtime provides them.
+ *
+ * <p>Callers without a deadline never block on a task that waits in the pool queue: {@link
+ * #join(Future)} runs such a task on the calling thread. Nested fan-outs (a member request that
+ * triggers other member requests) therefore cannot starve the pool. Under a deadline a task is
+ * never run on the caller, as nothing could stop it when the deadline expires; the pages and
+ * hedged duplicates a member request waits for run on {@link #submitRequest threads of their
+ * own} instead, as do the branches of {@link #forEachCompleted}. Requests over the per-member
+ * limit wait in a queue of their member, without a thread, until an earlier request towards that
+ * member is done.
+ *
+ * <p>All three are bounded: the pool by its size and queue, the request and branch threads by
+ * their own maximum. A task that finds them all in use is never run on the thread that submits
+ * it; it fails at once with a {@link RejectedExecutionException} and the response of its federated
+ * request gets a warning. Only in {@code virtual} mode the number of threads is not limited.
+ */
+public class FanoutExecutor {
+  private static final org.slf4j.Logger ourLog =
+      org.slf4j.LoggerFactory.getLogger(FanoutExecutor.class);
+
+  public static final int DEFAULT_POOL_SIZE = 32;
+  public static final int DEFAULT_QUEUE_SIZE = 1000;
+  public static final int DEFAULT_KEEP_ALIVE_SECONDS = 60;
+  public static final int DEFAULT_MAX_IN_FLIGHT_PER_MEMBER = 10;
+  public static final int DEFAULT_REQUEST_THREADS = 256;
+  public static final int DEFAULT_BRANCH_THREADS = 64;
+  public static final String MODE_VIRTUAL = "virtual";
+  public static final String TRANSPORT_ASYNC = "async";
+  public static final int DEFAULT_ASYNC_THREADS = 4;
+  static final String REJECTED =
+      "Member request rejected, all fan-out threads are in use, results may be incomplete";
+
+  private final ExecutorService executor;
+  private final ExecutorService asyncExecutor;
+  private final ExecutorService requestExecutor;
+  private final ExecutorService branchExecutor;
+  private final int maxInFlightPerMember;
+  private final Integer requestTimeout;
+  private final Map<String, MemberQueue> inFlight = new ConcurrentHashMap<>();
+
+  public FanoutExecutor(Fanout config) {
+    Optional<Fanout> fanout = Optional.ofNullable(config);
+    maxInFlightPerMember =
+        fanout.map(Fanout::getMaxInFlightPerMember).orElse(DEFAULT_MAX_IN_FLIGHT_PER_MEMBER);
+    requestTimeout = fanout.map(Fanout::getRequestTimeout).orElse(null);
+    ExecutorService virtual = null;
+    if (MODE_VIRTUAL.equalsIgnoreCase(fanout.map(Fanout::getMode).orElse(null))) {
+      virtual = newVirtualThreadPerTaskExecutor();
+    }
+    executor = virtual == null ? newThreadPool(fanout) : virtual;
+    int keepAlive = fanout.map(Fanout::getKeepAliveSeconds).orElse(DEFAULT_KEEP_ALIVE_SECONDS);
+    requestExecutor =
+        virtual == null
+            ? newThreads(
+                fanout.map(Fanout::getRequestThreads).orElse(DEFAULT_REQUEST_THREADS),
+                keepAlive,
+                "fanout-request-")
+            : virtual;
+    branchExecutor =
+        virtual == null
+            ? newThreads(
+                fanout.map(Fanout::getBranchThreads).orElse(DEFAULT_BRANCH_THREADS),
+                keepAlive,
+                "fanout-branch-")
+            : virtual;
+    if (TRANSPORT_ASYNC.equalsIgnoreCase(fanout.map(Fanout::getTransport).orElse(null))) {
+      int threads = fanout.map(Fanout::getAsyncThreads).orElse(DEFAULT_ASYNC_THREADS);
+      asyncExecutor =
+          Executors.newFixedThreadPool(threads, new FanoutThreadFactory("fanout-async-"));
+      ourLog.info("Async member transport with {} threads", threads);
+    } else {
+      asyncExecutor = null;
+    }
+  }
+
+  private static ExecutorService newVirtualThreadPerTaskExecutor() {
+    try {
+      // looked up reflectively, the build still targets Java 11
+      Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+      ExecutorService retVal = (ExecutorService) factory.invoke(null);
+      ourLog.info("Fan-out executor with a virtual thread per member request");
+      return retVal;
+    } catch (ReflectiveOperationException | RuntimeException e) {
+      ourLog.warn("Virtual threads are not available on this runtime, using a thread pool");
+      return null;
+    }
+  }
+
+  private static ExecutorService newThreadPool(Optional<Fanout> fanout) {
+    int poolSize = fanout.map(Fanout::getPoolSize).orElse(DEFAULT_POOL_SIZE);
+    int queueSize = fanout.map(Fanout::getQueueSize).orElse(DEFAULT_QUEUE_SIZE);
+    int keepAlive = fanout.map(Fanout::getKeepAliveSeconds).orElse(DEFAULT_KEEP_ALIVE_SECONDS);
+
+    ThreadPoolExecutor executor =
+        new ThreadPoolExecutor(
+            poolSize,
+            poolSize,
+            keepAlive,
+            TimeUnit.SECONDS,
+            new ArrayBlockingQueue<>(queueSize),
+            new FanoutThreadFactory("fanout-"));
+    executor.allowCoreThreadTimeOut(true);
+    ourLog.info("Fan-out executor with {} threads and a queue of {}", poolSize, queueSize);
+    return executor;
+  }
+
+  /** Up to {@code maxThreads} threads, started when needed; no queue, as a task never waits. */
+  private static ExecutorService newThreads(int maxThreads, int keepAlive, String prefix) {
+    ourLog.info("Fan-out executor {} with at most {} threads", prefix, maxThreads);
+    return new ThreadPoolExecutor(
+        0,
+        maxThreads,
+        keepAlive,
+        TimeUnit.SECONDS,
+        new SynchronousQueue<>(),
+        new FanoutThreadFactory(prefix));
+  }
+
+  /**
+   * Opens the scope of a federated request on the calling thread. Close it when the request is
+   * answered.
+   */
+  public FanoutScope openScope() {
+    return new FanoutScope();
+  }
+
+  /** The deadline for a federated request that starts now. */
+  public Deadline newDeadline() {
+    return requestTimeout == null ? Deadline.none() : Deadline.after(requestTimeout);
+  }
+
+  /** Whether member searches use the non-blocking transport. */
+  public boolean isAsync() {
+    return asyncExecutor != null;
+  }
+
+  /** The small pool on which the responses of the non-blocking transport are handled. */
+  public Executor getAsyncExecutor() {
+    return asyncExecutor;
+  }
+
+  public int getMaxInFlightPerMember() {
+    return maxInFlightPerMember;
+  }
+
+  /** Lets a non-blocking request be cancelled together with the scope of the calling thread. */
+  public <T> CompletableFuture<T> track(CompletableFuture<T> future) {
+    return track(future, FanoutScope.current());
+  }
+
+  /** Lets a non-blocking request be cancelled together with the given scope, if any. */
+  public <T> CompletableFuture<T> track(CompletableFuture<T> future, FanoutScope scope) {
+    if (scope != null) {
+      scope.register(future);
+      future.whenComplete((result, e) -> scope.unregister(future));
+    }
+    return future;
+  }
+
+  public <T> Future<T> submit(Callable<T> task) {
+    return submit(task, null, executor);
+  }
+
+  /** Submits a task that adds itself to {@code completion} when it is done, if given. */
+  private <T> Future<T> submit(Callable<T> task, Queue<Future<T>> completion, ExecutorService on) {
+    FanoutTask<T> future = new FanoutTask<>(task, completion, null);
+    future.dispatched = true;
+    execute(future, on);
+    return future;
+  }
+
+  /** Hands the task to the executor, or fails it when the executor is full. */
+  private static void execute(FanoutTask<?> task, ExecutorService on) {
+    try {
+      on.execute(task);
+    } catch (RejectedExecutionException e) {
+      task.reject(e);
+    }
+  }
+
+  /**
+   * Submits an HTTP request that a running member request waits for, such as its next page. These
+   * run on threads of their own, never queued behind the member requests; at most {@code
+   * request-threads} at the same time, a request beyond that is rejected.
+   */
+  public <T> Future<T> submitRequest(Callable<T> request) {
+    return submitRequest(request, null);
+  }
+
+  /** As {@link #submitRequest(Callable)}, adding itself to {@code completion} when it is done. */
+  public <T> Future<T> submitRequest(Callable<T> request, Queue<Future<T>> completion) {
+    return submit(request, completion, requestExecutor);
+  }
+
+  /**
+   * Submits a request towards one member server. At most {@code maxInFlightPerMember} of these run
+   * at the same time per member, a value of 0 or less means no limit. The others wait in a queue
+   * of the member, not on a pool thread.
+   */
+  public <T> Future<T> submit(String member, Callable<T> task) {
+    if (maxInFlightPerMember <= 0) {
+      return submit(task);
+    }
+    MemberQueue queue = inFlight.computeIfAbsent(member, m -> new MemberQueue());
+    FanoutTask<T> future = new FanoutTask<>(task, null, queue);
+    queue.offer(future);
+    return future;
+  }
+
+  /** Waits for the result of a task, running it on the calling thread if it has not started. */
+  public <T> T join(Future<T> future) {
+    if (isRunnable(future)) {
+      // no-op when a pool thread already picked it up
+      ((FutureTask<T>) future).run();
+    }
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      future.cancel(true);
+      throw new IllegalStateException("Interrupted while waiting for a member request", e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw new IllegalStateException(e.getCause());
+    }
+  }
+
+  /**
+   * Waits for the result of a task until the deadline expires. The task is cancelled when it is
+   * not done by then, it is never run on the calling thread.
+   */
+  public <T> T join(Future<T> future, Deadline deadline) {
+    if (!deadline.isBounded()) {
+      return join(future);
+    }
+    if (deadline.isExpired() && !future.isDone()) {
+      future.cancel(true);
+      throw new DeadlineExceededException("Member request cancelled, deadline expired");
+    }
+    try {
+      return future.get(deadline.remainingMillis(), TimeUnit.MILLISECONDS);
+    } catch (TimeoutException e) {
+      future.cancel(true);
+      throw new DeadlineExceededException("Member request cancelled, deadline expired");
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      future.cancel(true);
+      throw new IllegalStateException("Interrupted while waiting for a member request", e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw new IllegalStateException(e.getCause());
+    }
+  }
+
+  /**
+   * Runs an idempotent request and sends a duplicate when no answer arrived after {@code
+   * hedgeAfter} milliseconds. The first answer wins, the other request is cancelled. Both are
+   * cancelled when the deadline expires first.
+   */
+  public <T> T hedge(Callable<T> request, long hedgeAfter, Deadline deadline) {
+    CompletableFuture<T> first = new CompletableFuture<>();
+    AtomicInteger running = new AtomicInteger(1);
+    Callable<T> racer =
+        () -> {
+          try {
+            T result = request.call();
+            first.complete(result);
+            return result;
+          } catch (Exception e) {
+            // only fail when the other request cannot answer anymore
+            if (running.decrementAndGet() == 0) {
+              first.completeExceptionally(e);
+            }
+            throw e;
+          }
+        };
+    Future<T> primary = submitRequest(racer);
+    if (isRejected(primary)) {
+      // throws the rejection, the racer never ran
+      return join(primary);
+    }
+    Future<T> backup = null;
+    try {
+      try {
+        return first.get(Math.min(hedgeAfter, deadline.remainingMillis()), TimeUnit.MILLISECONDS);
+      } catch (TimeoutException e) {
+        if (!first.isDone() && !deadline.isExpired()) {
+          ourLog.debug("Hedging request after {} ms", hedgeAfter);
+          running.incrementAndGet();
+          backup = submitRequest(racer);
+          if (isRejected(backup) && running.decrementAndGet() == 0) {
+            first.completeExceptionally(new RejectedExecutionException(REJECTED));
+          }
+        }
+        return first.get(deadline.remainingMillis(), TimeUnit.MILLISECONDS);
+      }
+    } catch (TimeoutException e) {
+      throw new DeadlineExceededException("Member request cancelled, deadline expired");
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while waiting for a member request", e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw new IllegalStateException(e.getCause());
+    } finally {
+      primary.cancel(true);
+      if (backup != null) {
+        backup.cancel(true);
+      }
+    }
+  }
+
+  /**
+   * Runs the tasks concurrently and hands their results to {@code consumer} on the calling thread,
+   * in the order in which they complete. When the consumer returns false, the tasks that are still
+   * running are cancelled and no further results are handed over.
+   *
+   * <p>The tasks are branches of a search that fan out to the members themselves, so they run on
+   * threads of their own and only their member requests take threads of the pool. Each branch has
+   * a scope of its own: cancelling a branch also cancels the member requests it submitted.
+   */
+  public <T> void forEachCompleted(List<Callable<T>> tasks, Predicate<T> consumer) {
+    BlockingQueue<Future<T>> completed = new LinkedBlockingQueue<>();
+    List<Future<T>> futures = new ArrayList<>();
+    FanoutScope parent = FanoutScope.current();
+    for (Callable<T> task : tasks) {
+      FanoutTask<T> future =
+          new FanoutTask<>(
+              parent, FanoutScope.branch(parent), Explain.wrap(task), completed, null);
+      future.dispatched = true;
+      execute(future, branchExecutor);
+      futures.add(future);
+    }
+    try {
+      for (int remaining = futures.size(); remaining > 0; remaining--) {
+        if (!consumer.test(join(completed.take()))) {
+          return;
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while waiting for a member request", e);
+    } finally {
+      futures.forEach(future -> future.cancel(true));
+    }
+  }
+
+  public <T> List<T> invokeAll(List<Callable<T>> tasks) {
+    List<Future<T>> futures = new ArrayList<>();
+    for (Callable<T> task : tasks) {
+      futures.add(submit(task));
+    }
+    List<T> retVal = new ArrayList<>();
+    for (Future<T> future : futures) {
+      retVal.add(join(future));
+    }
+    return retVal;
+  }
+
+  public void shutdown() {
+    executor.shutdownNow();
+    requestExecutor.shutdownNow();
+    branchExecutor.shutdownNow();
+    if (asyncExecutor != null) {
+      asyncExecutor.shutdownNow();
+    }
+  }
+
+  private static boolean isRejected(Future<?> future) {
+    return future instanceof FanoutTask && ((FanoutTask<?>) future).rejected;
+  }
+
+  /** Whether the task may run on the calling thread, a queued member request may not. */
+  private static boolean isRunnable(Future<?> future) {
+    return future instanceof FanoutTask
+        && ((FanoutTask<?>) future).dispatched
+        && !future.isDone();
+  }
+
+  /**
+   * A task in the scope and explain step of the thread that submitted it, or in a scope of its own
+   * that is cancelled with the task.
+   */
+  private static class FanoutTask<T> extends FutureTask<T> {
+    private final FanoutScope scope;
+    private final FanoutScope own;
+    private final Queue<Future<T>> completion;
+    private final MemberQueue member;
+    /** Handed to the pool, guarded by the member queue when there is one. */
+    private volatile boolean dispatched;
+    /** Failed because the executor was full, it never ran. */
+    private volatile boolean rejected;
+
+    FanoutTask(Callable<T> task, Queue<Future<T>> completion, MemberQueue member) {
+      this(FanoutScope.current(), null, Explain.wrap(task), completion, member);
+    }
+
+    private FanoutTask(
+        FanoutScope scope,
+        FanoutScope own,
+        Callable<T> task,
+        Queue<Future<T>> completion,
+        MemberQueue member) {
+      super(wrap(own == null ? scope : own, task));
+      this.scope = scope;
+      this.own = own;
+      this.completion = completion;
+      this.member = member;
+      if (scope != null) {
+        scope.register(this);
+      }
+    }
+
+    private static <T> Callable<T> wrap(FanoutScope scope, Callable<T> task) {
+      return scope == null ? task : scope.wrap(task);
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+      boolean retVal = super.cancel(mayInterruptIfRunning);
+      if (own != null) {
+        own.cancel();
+      }
+      return retVal;
+    }
+
+    void reject(RejectedExecutionException e) {
+      ourLog.warn("Member request rejected, all fan-out threads are in use");
+      rejected = true;
+      if (scope != null) {
+        scope.addWarning(REJECTED);
+      }
+      setException(e);
+    }
+
+    @Override
+    protected void done() {
+      if (scope != null) {
+        scope.unregister(this);
+      }
+      if (member != null) {
+        member.finished(this);
+      }
+      if (completion != null) {
+        completion.add(this);
+      }
+    }
+  }
+
+  /**
+   * The requests towards one member: at most {@code maxInFlightPerMember} are handed to the pool,
+   * the next one when one of these is done.
+   */
+  private class MemberQueue {
+    private final Deque<FanoutTask<?>> waiting = new ArrayDeque<>();
+    private int running;
+
+    void offer(FanoutTask<?> task) {
+      synchronized (this) {
+        waiting.add(task);
+      }
+      dispatch();
+    }
+
+    void finished(FanoutTask<?> task) {
+      synchronized (this) {
+        if (!task.dispatched) {
+          // cancelled while waiting
+          waiting.remove(task);
+          return;
+        }
+        running--;
+      }
+      // the dispatch that rejected the task goes on with the next one itself
+      if (!task.rejected) {
+        dispatch();
+      }
+    }
+
+    private void dispatch() {
+      while (true) {
+        FanoutTask<?> next;
+        synchronized (this) {
+          if (running >= maxInFlightPerMember || waiting.isEmpty()) {
+            return;
+          }
+          next = waiting.poll();
+          if (next.isDone()) {
+            continue;
+          }
+          next.dispatched = true;
+          running++;
+        }
+        execute(next, executor);
+      }
+    }
+  }
+
+  private static class FanoutThreadFactory implements ThreadFactory {
+    private final AtomicInteger counter = new AtomicInteger();
+    private final String prefix;
+
+    FanoutThreadFactory(String prefix) {
+      this.prefix = prefix;
+    }
+
+    @Override
+    public Thread newThread(Runnable r) {
+      Thread thread = new Thread(r, prefix + counter.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    }
+  }
+}
@@ -0,0 +1,151 @@
+package ca.uhn.fhir.federator;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+
+/**
+ * Groups all member requests issued on behalf of one federated request.
+ *
+ * <p>Tasks submitted to the {@link FanoutExecutor} while a scope is open on the submitting thread
+ * belong to that scope, and so do the tasks they submit in turn. Closing or cancelling the scope
+ * cancels every request that is still outstanding.
+ */
+public class FanoutScope implements AutoCloseable {
+  private static final ThreadLocal<FanoutScope> CURRENT = new ThreadLocal<>();
+
+  private final Set<Future<?>> outstanding = ConcurrentHashMap.newKeySet();
+  private final Set<String> warnings = Collections.synchronizedSet(new LinkedHashSet<>());
+  private final FanoutScope previous;
+  // receives the warnings of a branch
+  private final FanoutScope parent;
+  private volatile boolean cancelled;
+
+  FanoutScope() {
+    this(true, null);
+  }
+
+  private FanoutScope(boolean open, FanoutScope parent) {
+    this.previous = open ? CURRENT.get() : null;
+    this.parent = parent;
+    if (open) {
+      CURRENT.set(this);
+    }
+  }
+
+  /**
+   * A scope that is not opened on any thread, for work that outlives the federated request; it is
+   * entered with {@link #run} and ended with {@link #cancel}.
+   */
+  static FanoutScope detached() {
+    return new FanoutScope(false, null);
+  }
+
+  /**
+   * A detached scope for a part of the federated request of {@code parent} that can be cancelled on
+   * its own; its warnings are those of the parent.
+   */
+  static FanoutScope branch(FanoutScope parent) {
+    return new FanoutScope(false, parent);
+  }
+
+  public static FanoutScope current() {
+    return CURRENT.get();
+  }
+
+  /** Records a warning for the response, when the calling thread works for a federated request. */
+  public static void warn(String warning) {
+    FanoutScope scope = CURRENT.get();
+    if (scope != null) {
+      scope.addWarning(warning);
+    }
+  }
+
+  /** Records a warning for the response of this federated request, from any thread. */
+  public void addWarning(String warning) {
+    if (parent != null) {
+      parent.addWarning(warning);
+    } else {
+      warnings.add(warning);
+    }
+  }
+
+  public List<String> getWarnings() {
+    synchronized (warnings) {
+      return new ArrayList<>(warnings);
+    }
+  }
+
+  /** Makes the task run inside this scope, whatever thread ends up executing it. */
+  <T> Callable<T> wrap(Callable<T> task) {
+    return () -> {
+      FanoutScope outer = enter();
+      try {
+        return task.call();
+      } finally {
+        exit(outer);
+      }
+    };
+  }
+
+  /** Runs the task inside this scope on the calling thread. */
+  void run(Runnable task) {
+    FanoutScope outer = enter();
+    try {
+      task.run();
+    } finally {
+      exit(outer);
+    }
+  }
+
+  private FanoutScope enter() {
+    FanoutScope retVal = CURRENT.get();
+    CURRENT.set(this);
+    return retVal;
+  }
+
+  private static void exit(FanoutScope outer) {
+    if (outer == null) {
+      CURRENT.remove();
+    } else {
+      CURRENT.set(outer);
+    }
+  }
+
+  void register(Future<?> future) {
+    outstanding.add(future);
+    if (cancelled) {
+      future.cancel(true);
+    }
+  }
+
+  void unregister(Future<?> future) {
+    outstanding.remove(future);
+  }
+
+  public boolean isCancelled() {
+    return cancelled;
+  }
+
+  public void cancel() {
+    cancelled = true;
+    outstanding.forEach(future -> future.cancel(true));
+  }
+
+  @Override
+  public void close() {
+    if (!outstanding.isEmpty()) {
+      cancel();
+    }
+    if (previous == null) {
+      CURRENT.remove();
+    } else {
+      CURRENT.set(previous);
+    }
+  }
+}
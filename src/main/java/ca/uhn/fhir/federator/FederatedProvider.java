@@ -3,6 +3,7 @@ package ca.uhn.fhir.federator;
 import java.util.Collections;
 import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.Callable;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -64,7 +65,17 @@ public abstract class FederatedProvider implements IResourceProvider {
     List<ServerResourceConfig> servers = rr.getServer4Resource(br.getSimpleName()).getLocations();
 
     Optional<ServerResourceConfig> preferred =
-        servers.stream().filter(x -> evaluate(action, resource, x)).findFirst();
+        servers.stream()
+            .filter(x -> evaluate(action, resource, x))
+            .filter(
+                x -> {
+                  boolean available = cr.isAvailable(x.getServer());
+                  if (!available) {
+                    ParameterExecutor.skipMember(x.getServer());
+                  }
+                  return available;
+                })
+            .findFirst();
     return preferred.map(serverResourceConfig -> cr.getClient(serverResourceConfig.getServer()));
   }
 
@@ -96,11 +107,15 @@ public abstract class FederatedProvider implements IResourceProvider {
           Msg.code(636) + "No memberserver available for the update of this resource");
     }
     IdType newId = new IdType(client.get().getServerBase(), type, id, versionString);
+    String base = client.get().getServerBase();
+    long start = System.currentTimeMillis();
     try {
       MethodOutcome outcome = action(resource, client.get(), newId);
+      cr.recordSuccess(base, System.currentTimeMillis() - start);
       outcomeStream = Stream.of(outcome);
 
     } catch (BaseServerResponseException e) {
+      cr.recordError(base, e);
       ourLog.error("{}", e.getMessage());
       int status = e.getStatusCode();
       MethodOutcome outcome =
@@ -128,10 +143,23 @@ public abstract class FederatedProvider implements IResourceProvider {
             .filter(x -> type.equals(x.getResourceType()))
             .collect(Collectors.toList());
 
-    List<MethodOutcome> retVal =
-        updatableResources.stream()
-            .flatMap(x -> performAction(action, resource, type, x))
-            .collect(Collectors.toList());
+    List<MethodOutcome> retVal;
+    try (FanoutScope scope = cr.getExecutor().openScope()) {
+      retVal =
+          cr.getExecutor()
+              .invokeAll(
+                  updatableResources.stream()
+                      .map(
+                          x ->
+                              (Callable<List<MethodOutcome>>)
+                                  () ->
+                                      performAction(action, resource, type, x)
+                                          .collect(Collectors.toList()))
+                      .collect(Collectors.toList()))
+              .stream()
+              .flatMap(List::stream)
+              .collect(Collectors.toList());
+    }
 
     Optional<MethodOutcome> rv =
         retVal.stream()
@@ -4,14 +4,18 @@ import static ca.uhn.fhir.federator.TreeUtils.toPrettyTree;
 import static java.nio.charset.StandardCharsets.UTF_8;
 
 import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.federator.FederatorProperties.Include;
+import ca.uhn.fhir.federator.FhirUrlParser.PContext;
 import ca.uhn.fhir.federator.FhirUrlParser.SContext;
 import ca.uhn.fhir.federator.ast.AndNode;
 import ca.uhn.fhir.federator.ast.IncludeNode;
 import ca.uhn.fhir.federator.ast.Node;
 import ca.uhn.fhir.federator.ast.NoopNode;
 import ca.uhn.fhir.federator.ast.ParameterNode;
+import ca.uhn.fhir.model.api.ResourceMetadataKeyEnum;
 import ca.uhn.fhir.rest.annotation.Operation;
 import ca.uhn.fhir.rest.api.server.IBundleProvider;
+import ca.uhn.fhir.rest.server.SimpleBundleProvider;
 import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
 import java.io.IOException;
 import java.net.URLDecoder;
@@ -19,18 +23,20 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Enumeration;
 import java.util.List;
+import java.util.Optional;
 import java.util.stream.Collectors;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import org.antlr.v4.runtime.CharStream;
-import org.antlr.v4.runtime.CharStreams;
-import org.antlr.v4.runtime.CommonTokenStream;
 import org.antlr.v4.runtime.ParserRuleContext;
-import org.antlr.v4.runtime.TokenSource;
-import org.antlr.v4.runtime.TokenStream;
 import org.apache.commons.collections4.CollectionUtils;
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.StringUtils;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Bundle.SearchEntryMode;
+import org.hl7.fhir.r4.model.OperationOutcome;
+import org.hl7.fhir.r4.model.OperationOutcome.IssueSeverity;
+import org.hl7.fhir.r4.model.OperationOutcome.IssueType;
+import org.hl7.fhir.r4.model.Parameters;
 
 public class FederatedSearchProvider {
   static final org.slf4j.Logger ourLog =
@@ -44,6 +50,12 @@ public class FederatedSearchProvider {
 
   private final SearchParam2FhirPathRegistry s2f;
 
+  private final QueryPlanner planner;
+
+  private final PlanCache planCache;
+
+  private final Include include;
+
   private boolean handlingStrict;
 
   public FhirContext getCtx() {
@@ -56,10 +68,32 @@ public class FederatedSearchProvider {
 
   public FederatedSearchProvider(
       ClientRegistry cr, ResourceRegistry rr, FhirContext ctx, SearchParam2FhirPathRegistry s2f) {
+    this(cr, rr, ctx, s2f, new QueryPlanner(cr, rr, null));
+  }
+
+  public FederatedSearchProvider(
+      ClientRegistry cr,
+      ResourceRegistry rr,
+      FhirContext ctx,
+      SearchParam2FhirPathRegistry s2f,
+      QueryPlanner planner) {
+    this(cr, rr, ctx, s2f, planner, null);
+  }
+
+  public FederatedSearchProvider(
+      ClientRegistry cr,
+      ResourceRegistry rr,
+      FhirContext ctx,
+      SearchParam2FhirPathRegistry s2f,
+      QueryPlanner planner,
+      Include include) {
     this.cr = cr;
     this.rr = rr;
     this.ctx = ctx;
     this.s2f = s2f;
+    this.planner = planner;
+    this.planCache = planner.getPlanCache();
+    this.include = include;
   }
 
   @Operation(name = "$doFederation", manualRequest = true, idempotent = true, global = true)
@@ -102,43 +136,177 @@ public class FederatedSearchProvider {
   public IBundleProvider searchWithAstQueryAnalysis(String toParse) {
     toParse = URLDecoder.decode(toParse, UTF_8);
 
-    CharStream inputCharStream = CharStreams.fromString(toParse);
-    TokenSource tokenSource = new FhirUrlLexer(inputCharStream);
-    TokenStream inputTokenStream = new CommonTokenStream(tokenSource);
-    FhirUrlParser parser = new FhirUrlParser(inputTokenStream);
+    List<String> parameters = Arrays.asList(StringUtils.substringAfter(toParse, "?").split("&"));
+    if (parameters.stream().anyMatch(FederatedSearchProvider::isExplainParameter)) {
+      String path = StringUtils.substringBefore(toParse, "?");
+      List<String> others =
+          parameters.stream()
+              .filter(x -> !isExplainParameter(x) && !x.startsWith(Explain.PARAMETER + "="))
+              .collect(Collectors.toList());
+      return explain(others.isEmpty() ? path : path + "?" + String.join("&", others));
+    }
+    return search(toParse);
+  }
+
+  private static boolean isExplainParameter(String parameter) {
+    return Explain.PARAMETER.equals(parameter) || (Explain.PARAMETER + "=true").equals(parameter);
+  }
+
+  private IBundleProvider search(String toParse) {
+    Node root = createAST(getPlan(toParse));
+
+    ourLog.info(root.toString());
+
+    try (FanoutScope scope = cr.getExecutor().openScope()) {
+      if (planner.isLazy()
+          && Explain.current() == null
+          && root instanceof ParameterNode
+          && ((ParameterNode) root).isLazy()) {
+        List<LazyBundleProvider.Source> sources = ((ParameterNode) root).getLazySources();
+        return new LazyBundleProvider(
+            sources, scope.getWarnings(), FederatedSearchProvider::getOutcome);
+      }
+      IBundleProvider result = root.execute(cr.getExecutor().newDeadline());
+      // after the intersections, which match every copy on its own identifiers
+      List<IBaseResource> merged = new RecordMerger(rr).merge(result.getAllResources());
+      return withWarnings(new SimpleBundleProvider(merged), scope.getWarnings());
+    }
+  }
+
+  /**
+   * Executes the search and returns the executed plan, as a Parameters resource, instead of the
+   * results.
+   */
+  private IBundleProvider explain(String toParse) {
+    Explain.Step root = new Explain.Step("search", toParse);
+    IBundleProvider result = Explain.run(root, () -> search(toParse));
+    Parameters plan = root.toParameters();
+    ResourceMetadataKeyEnum.ENTRY_SEARCH_MODE.put(plan, SearchEntryMode.OUTCOME.toCode());
+    List<IBaseResource> resources = new ArrayList<>();
+    resources.add(plan);
+    // the warnings of the search
+    result.getAllResources().stream()
+        .filter(OperationOutcome.class::isInstance)
+        .forEach(resources::add);
+    return new SimpleBundleProvider(resources);
+  }
+
+  /** Adds the warnings collected during the search as an OperationOutcome entry. */
+  private IBundleProvider withWarnings(IBundleProvider result, List<String> warnings) {
+    if (warnings.isEmpty()) {
+      return result;
+    }
+    List<IBaseResource> resources = new ArrayList<>(result.getAllResources());
+    resources.addAll(getOutcome(warnings));
+    return new SimpleBundleProvider(resources);
+  }
 
-    parser.addErrorListener(new ParserErrorListener());
+  /** The warnings as an OperationOutcome entry, none when there are no warnings. */
+  private static List<IBaseResource> getOutcome(List<String> warnings) {
+    if (warnings.isEmpty()) {
+      return List.of();
+    }
+    OperationOutcome outcome = new OperationOutcome();
+    for (String warning : warnings) {
+      outcome
+          .addIssue()
+          .setSeverity(IssueSeverity.WARNING)
+          .setCode(IssueType.INCOMPLETE)
+          .setDiagnostics(warning);
+    }
+    // the bundle factory sets this code as search mode, BundleEntrySearchModeEnum has no OUTCOME
+    ResourceMetadataKeyEnum.ENTRY_SEARCH_MODE.put(outcome, SearchEntryMode.OUTCOME.toCode());
+    return List.of(outcome);
+  }
 
-    SContext context = parser.s();
+  /** The plan of a simple query directly, of other queries from the cache or the parser. */
+  QueryPlan getPlan(String toParse) {
+    Optional<QueryPlan> simple = SimpleQueryParser.parse(toParse);
+    if (simple.isPresent()) {
+      QueryPlan retVal = new QueryPlan();
+      for (QueryPlan.Parameter parameter : simple.get().getAndParameters()) {
+        List<ParsedUrl> urls =
+            parameter.getUrls().stream()
+                .map(parsedUrl -> validateKey(parsedUrl, handlingStrict, s2f))
+                .collect(Collectors.toList());
+        retVal.getAndParameters().add(new QueryPlan.Parameter(parameter.getPosition(), urls));
+      }
+      return retVal;
+    }
+    PlanCache.Shape shape = PlanCache.shape(toParse, handlingStrict);
+    QueryPlan retVal = planCache == null ? null : planCache.get(shape).orElse(null);
+    if (retVal == null) {
+      retVal = createPlan(shape);
+      if (planCache != null) {
+        planCache.put(shape, retVal);
+      }
+    }
+    return retVal;
+  }
 
-    ourLog.info(toPrettyTree(context, Arrays.asList(parser.getRuleNames())));
+  /** Parses the query and creates the URLs of its parameters. */
+  private QueryPlan createPlan(PlanCache.Shape shape) {
+    SContext context = FhirUrlParsing.parse(shape.getTokens());
 
-    ourLog.info(context.getText());
+    if (ourLog.isTraceEnabled()) {
+      ourLog.trace(toPrettyTree(context, Arrays.asList(FhirUrlParser.ruleNames)));
+      ourLog.trace(context.getText());
+    }
 
     FhirUrlAnalyser visitor = new FhirUrlAnalyser();
 
     context.accept(visitor);
 
-    Node root = createAST(visitor);
-
-    ourLog.info(root.toString());
+    QueryPlan retVal = new QueryPlan();
+    for (ParserRuleContext httpParam : visitor.getAndParameters()) {
+      retVal
+          .getAndParameters()
+          .add(
+              new QueryPlan.Parameter(
+                  getPosition(shape, httpParam),
+                  createPartialUrls(handlingStrict, false, httpParam, visitor, s2f)));
+    }
+    for (ParserRuleContext httpParam : visitor.getIncludeParameters()) {
+      retVal
+          .getIncludeParameters()
+          .add(
+              new QueryPlan.Parameter(
+                  getPosition(shape, httpParam),
+                  createPartialUrls(handlingStrict, true, httpParam, visitor, s2f)));
+    }
+    return retVal;
+  }
 
-    return root.execute();
+  private static int getPosition(PlanCache.Shape shape, ParserRuleContext httpParam) {
+    if (httpParam == null || ((PContext) httpParam).d() == null) {
+      return -1;
+    }
+    return shape.getPosition(((PContext) httpParam).d().getStart());
   }
 
-  private Node createAST(FhirUrlAnalyser visitor) {
+  Node createAST(QueryPlan plan) {
 
-    List<Node> perParameter =
-        visitor.getAndParameters().stream()
-            .map(httpParam -> createPartialUrls(handlingStrict, false, httpParam, visitor, s2f))
-            .map(partialUrls -> new ParameterNode(partialUrls, rr, cr, ctx, s2f))
+    List<List<ParsedUrl>> perParameterUrls =
+        plan.getAndParameters().stream()
+            .map(QueryPlan.Parameter::getUrls)
             .collect(Collectors.toList());
 
-    AndNode and = new AndNode(rr, perParameter);
+    Optional<ParsedUrl> pushedDown = planner.pushDown(perParameterUrls);
+    Node and;
+    if (pushedDown.isPresent()) {
+      and = new ParameterNode(List.of(pushedDown.get()), rr, cr, ctx, s2f);
+    } else {
+      List<Node> perParameter =
+          perParameterUrls.stream()
+              .map(partialUrls -> new ParameterNode(partialUrls, rr, cr, ctx, s2f))
+              .collect(Collectors.toList());
+      // a single parameter is not an AND, so it can still be read lazily
+      and = perParameter.size() == 1 ? perParameter.get(0) : new AndNode(rr, planner, perParameter);
+    }
 
     List<ParameterNode> perIncludeParameter =
-        visitor.getIncludeParameters().stream()
-            .map(httpParam -> createPartialUrls(handlingStrict, true, httpParam, visitor, s2f))
+        plan.getIncludeParameters().stream()
+            .map(QueryPlan.Parameter::getUrls)
             .map(partialUrls -> new ParameterNode(partialUrls, rr, cr, ctx, s2f))
             .collect(Collectors.toList());
 
@@ -147,7 +315,7 @@ public class FederatedSearchProvider {
     chain.addAll(perIncludeParameter);
 
     return chain.stream()
-        .reduce((a, b) -> new IncludeNode(a, (ParameterNode) b))
+        .reduce((a, b) -> new IncludeNode(a, (ParameterNode) b, include))
         .orElse(NoopNode.EMPTY);
   }
 
@@ -158,7 +326,9 @@ public class FederatedSearchProvider {
       FhirUrlAnalyser visitor,
       SearchParam2FhirPathRegistry s2f) {
     return visitor.getResourcesForHttpParam(dependent, httpParam).stream()
-        .map(resourceInParam -> new ParsedUrlCreator(resourceInParam, httpParam).createUrl())
+        .map(
+            resourceInParam ->
+                new ParsedUrlCreator(resourceInParam, httpParam, visitor).createUrl())
         .flatMap(opt -> opt.stream())
         .map(parsedUrl -> validateKey(parsedUrl, handlingStrict, s2f))
         .collect(Collectors.toList());
@@ -26,6 +26,10 @@ public class FederatorProperties {
 
   Resources resources;
   Setup setup;
+  Fanout fanout;
+  CircuitBreaker circuitBreaker;
+  Planner planner;
+  Include include;
 
   public Resources getResources() {
     return resources;
@@ -39,11 +43,21 @@ public class FederatorProperties {
     List<List<String>> identifiers;
     List<ServerResourceConfig> locations;
     Integer maxOr;
+    Boolean merge;
 
     public void setMaxOr(Integer maxOr) {
       this.maxOr = maxOr;
     }
 
+    /** Return the copies of a resource with matching identifiers as one entry. */
+    public Boolean getMerge() {
+      return merge;
+    }
+
+    public void setMerge(Boolean merge) {
+      this.merge = merge;
+    }
+
     public List<ServerResourceConfig> getLocations() {
       return locations;
     }
@@ -61,7 +75,7 @@ public class FederatorProperties {
     }
 
     public Integer getMaxOr() {
-      return null;
+      return maxOr;
     }
 
     @Override
@@ -71,6 +85,7 @@ public class FederatorProperties {
       result = prime * result + ((identifiers == null) ? 0 : identifiers.hashCode());
       result = prime * result + ((locations == null) ? 0 : locations.hashCode());
       result = prime * result + ((maxOr == null) ? 0 : maxOr.hashCode());
+      result = prime * result + ((merge == null) ? 0 : merge.hashCode());
       return result;
     }
 
@@ -87,8 +102,11 @@ public class FederatorProperties {
         if (other.locations != null) return false;
       } else if (!locations.equals(other.locations)) return false;
       if (maxOr == null) {
-        return other.maxOr == null;
-      } else return maxOr.equals(other.maxOr);
+        if (other.maxOr != null) return false;
+      } else if (!maxOr.equals(other.maxOr)) return false;
+      if (merge == null) {
+        return other.merge == null;
+      } else return merge.equals(other.merge);
     }
   }
 
@@ -115,6 +133,15 @@ public class FederatorProperties {
 
   public static class ServerDesc {
     String url;
+    Integer maxPages;
+    Integer maxResources;
+    Integer connectTimeout;
+    Integer readTimeout;
+    Boolean hedge;
+    Integer hedgeDelay;
+    Integer maxUrlLength;
+    Integer maxOr;
+    Boolean batch;
 
     public String getUrl() {
       return url;
@@ -123,6 +150,79 @@ public class FederatorProperties {
     public void setUrl(String url) {
       this.url = url;
     }
+
+    public Integer getMaxPages() {
+      return maxPages;
+    }
+
+    public void setMaxPages(Integer maxPages) {
+      this.maxPages = maxPages;
+    }
+
+    public Integer getMaxResources() {
+      return maxResources;
+    }
+
+    public void setMaxResources(Integer maxResources) {
+      this.maxResources = maxResources;
+    }
+
+    public Integer getConnectTimeout() {
+      return connectTimeout;
+    }
+
+    public void setConnectTimeout(Integer connectTimeout) {
+      this.connectTimeout = connectTimeout;
+    }
+
+    public Integer getReadTimeout() {
+      return readTimeout;
+    }
+
+    public void setReadTimeout(Integer readTimeout) {
+      this.readTimeout = readTimeout;
+    }
+
+    public Boolean getHedge() {
+      return hedge;
+    }
+
+    public void setHedge(Boolean hedge) {
+      this.hedge = hedge;
+    }
+
+    public Integer getHedgeDelay() {
+      return hedgeDelay;
+    }
+
+    public void setHedgeDelay(Integer hedgeDelay) {
+      this.hedgeDelay = hedgeDelay;
+    }
+
+    public Integer getMaxUrlLength() {
+      return maxUrlLength;
+    }
+
+    public void setMaxUrlLength(Integer maxUrlLength) {
+      this.maxUrlLength = maxUrlLength;
+    }
+
+    public Integer getMaxOr() {
+      return maxOr;
+    }
+
+    public void setMaxOr(Integer maxOr) {
+      this.maxOr = maxOr;
+    }
+
+    /** Whether searches may be combined in batch Bundles, null to read the CapabilityStatement. */
+    public Boolean getBatch() {
+      return batch;
+    }
+
+    public void setBatch(Boolean batch) {
+      this.batch = batch;
+    }
   }
 
   public static class ServerResourceConfig {
@@ -132,6 +232,7 @@ public class FederatorProperties {
     private String create;
     private String update;
     private String delete;
+    private Boolean postSearch;
 
     public void setDelete(String delete) {
       this.delete = delete;
@@ -172,6 +273,15 @@ public class FederatorProperties {
     public String getDelete() {
       return delete;
     }
+
+    /** Send identifier batches as POST [type]/_search, so they are not bound by the URL length. */
+    public Boolean getPostSearch() {
+      return postSearch;
+    }
+
+    public void setPostSearch(Boolean postSearch) {
+      this.postSearch = postSearch;
+    }
   }
 
   public Setup getSetup() {
@@ -182,6 +292,304 @@ public class FederatorProperties {
     this.setup = setup;
   }
 
+  public Fanout getFanout() {
+    return fanout;
+  }
+
+  public void setFanout(Fanout fanout) {
+    this.fanout = fanout;
+  }
+
+  /** Sizing of the thread pool that executes the requests towards the member servers. */
+  public static class Fanout {
+    String mode;
+    Integer poolSize;
+    Integer queueSize;
+    Integer keepAliveSeconds;
+    Integer maxInFlightPerMember;
+    Integer requestTimeout;
+    String transport;
+    Integer asyncThreads;
+    Integer requestThreads;
+    Integer branchThreads;
+
+    public String getMode() {
+      return mode;
+    }
+
+    public void setMode(String mode) {
+      this.mode = mode;
+    }
+
+    public Integer getPoolSize() {
+      return poolSize;
+    }
+
+    public void setPoolSize(Integer poolSize) {
+      this.poolSize = poolSize;
+    }
+
+    public Integer getQueueSize() {
+      return queueSize;
+    }
+
+    public void setQueueSize(Integer queueSize) {
+      this.queueSize = queueSize;
+    }
+
+    public Integer getKeepAliveSeconds() {
+      return keepAliveSeconds;
+    }
+
+    public void setKeepAliveSeconds(Integer keepAliveSeconds) {
+      this.keepAliveSeconds = keepAliveSeconds;
+    }
+
+    public Integer getMaxInFlightPerMember() {
+      return maxInFlightPerMember;
+    }
+
+    public void setMaxInFlightPerMember(Integer maxInFlightPerMember) {
+      this.maxInFlightPerMember = maxInFlightPerMember;
+    }
+
+    public Integer getRequestTimeout() {
+      return requestTimeout;
+    }
+
+    public void setRequestTimeout(Integer requestTimeout) {
+      this.requestTimeout = requestTimeout;
+    }
+
+    /**
+     * "blocking" (default) or "async" for non-blocking member searches: the GET searches of a step
+     * and their next pages. All other member requests block a thread either way.
+     */
+    public String getTransport() {
+      return transport;
+    }
+
+    public void setTransport(String transport) {
+      this.transport = transport;
+    }
+
+    public Integer getAsyncThreads() {
+      return asyncThreads;
+    }
+
+    public void setAsyncThreads(Integer asyncThreads) {
+      this.asyncThreads = asyncThreads;
+    }
+
+    /** Threads for the pages and hedged duplicates that running member requests wait for. */
+    public Integer getRequestThreads() {
+      return requestThreads;
+    }
+
+    public void setRequestThreads(Integer requestThreads) {
+      this.requestThreads = requestThreads;
+    }
+
+    /** Threads for the parameters of an AND that run at the same time. */
+    public Integer getBranchThreads() {
+      return branchThreads;
+    }
+
+    public void setBranchThreads(Integer branchThreads) {
+      this.branchThreads = branchThreads;
+    }
+  }
+
+  public CircuitBreaker getCircuitBreaker() {
+    return circuitBreaker;
+  }
+
+  public void setCircuitBreaker(CircuitBreaker circuitBreaker) {
+    this.circuitBreaker = circuitBreaker;
+  }
+
+  public Planner getPlanner() {
+    return planner;
+  }
+
+  public void setPlanner(Planner planner) {
+    this.planner = planner;
+  }
+
+  public Include getInclude() {
+    return include;
+  }
+
+  public void setInclude(Include include) {
+    this.include = include;
+  }
+
+  /** Limits of {@code _include} and {@code _include:iterate}. */
+  public static class Include {
+    Integer maxIterateDepth;
+    Integer maxResources;
+
+    /** Rounds of an {@code _include:iterate} after the first one. */
+    public Integer getMaxIterateDepth() {
+      return maxIterateDepth;
+    }
+
+    public void setMaxIterateDepth(Integer maxIterateDepth) {
+      this.maxIterateDepth = maxIterateDepth;
+    }
+
+    /** Resources of a search, included ones counted, after which no more are included. */
+    public Integer getMaxResources() {
+      return maxResources;
+    }
+
+    public void setMaxResources(Integer maxResources) {
+      this.maxResources = maxResources;
+    }
+  }
+
+  /** How the parameters of a search are ordered before they are executed. */
+  public static class Planner {
+    Boolean enabled;
+    Boolean probe;
+    Integer probeTimeout;
+    String andMode;
+    Boolean pushDown;
+    Integer semiJoin;
+    Integer planCache;
+    Boolean lazy;
+
+    public Boolean getEnabled() {
+      return enabled;
+    }
+
+    public void setEnabled(Boolean enabled) {
+      this.enabled = enabled;
+    }
+
+    public Boolean getProbe() {
+      return probe;
+    }
+
+    public void setProbe(Boolean probe) {
+      this.probe = probe;
+    }
+
+    public Integer getProbeTimeout() {
+      return probeTimeout;
+    }
+
+    public void setProbeTimeout(Integer probeTimeout) {
+      this.probeTimeout = probeTimeout;
+    }
+
+    /** "sequential" (default) or "concurrent" execution of the parameters of an AND. */
+    public String getAndMode() {
+      return andMode;
+    }
+
+    public void setAndMode(String andMode) {
+      this.andMode = andMode;
+    }
+
+    /** Send plain parameters on the same resource as one search to the members, off by default. */
+    public Boolean getPushDown() {
+      return pushDown;
+    }
+
+    public void setPushDown(Boolean pushDown) {
+      this.pushDown = pushDown;
+    }
+
+    /**
+     * Up to this many results of the first parameter are sent as an identifier filter along with
+     * the next ones, 0 to switch off.
+     */
+    public Integer getSemiJoin() {
+      return semiJoin;
+    }
+
+    public void setSemiJoin(Integer semiJoin) {
+      this.semiJoin = semiJoin;
+    }
+
+    /** Number of query shapes of which the parsed parameters are kept, 0 to switch off. */
+    public Integer getPlanCache() {
+      return planCache;
+    }
+
+    public void setPlanCache(Integer planCache) {
+      this.planCache = planCache;
+    }
+
+    /** Read the results of a single search from the members only as the client pages through. */
+    public Boolean getLazy() {
+      return lazy;
+    }
+
+    public void setLazy(Boolean lazy) {
+      this.lazy = lazy;
+    }
+  }
+
+  /** When to stop sending requests to a member server that keeps failing. */
+  public static class CircuitBreaker {
+    Boolean enabled;
+    Integer windowSize;
+    Integer minimumCalls;
+    Integer failureRate;
+    Integer slowCall;
+    Integer openDuration;
+
+    public Boolean getEnabled() {
+      return enabled;
+    }
+
+    public void setEnabled(Boolean enabled) {
+      this.enabled = enabled;
+    }
+
+    public Integer getWindowSize() {
+      return windowSize;
+    }
+
+    public void setWindowSize(Integer windowSize) {
+      this.windowSize = windowSize;
+    }
+
+    public Integer getMinimumCalls() {
+      return minimumCalls;
+    }
+
+    public void setMinimumCalls(Integer minimumCalls) {
+      this.minimumCalls = minimumCalls;
+    }
+
+    public Integer getFailureRate() {
+      return failureRate;
+    }
+
+    public void setFailureRate(Integer failureRate) {
+      this.failureRate = failureRate;
+    }
+
+    public Integer getSlowCall() {
+      return slowCall;
+    }
+
+    public void setSlowCall(Integer slowCall) {
+      this.slowCall = slowCall;
+    }
+
+    public Integer getOpenDuration() {
+      return openDuration;
+    }
+
+    public void setOpenDuration(Integer openDuration) {
+      this.openDuration = openDuration;
+    }
+  }
+
   public static class Setup {
     List<Package> packages;
 
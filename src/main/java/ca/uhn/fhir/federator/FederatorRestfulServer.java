@@ -1,6 +1,5 @@
 package ca.uhn.fhir.federator;
 
-import ca.uhn.fhir.federator.FederatorProperties.ServerDesc;
 import java.io.File;
 import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
@@ -36,21 +35,25 @@ public class FederatorRestfulServer extends RestfulServer {
   public static final String ORG_HL_7_FHIR_R_4_MODEL_PREFIX = "org.hl7.fhir.r4.model.";
   private static final Logger ourLog = LoggerFactory.getLogger(FederatorRestfulServer.class);
 
+  private final FanoutExecutor executor;
+
   public FederatorRestfulServer(FederatorProperties configuration) {
 
     // Create a context for the appropriate version
     setFhirContext(FhirContext.forR4());
+    executor = new FanoutExecutor(configuration.getFanout());
     ClientRegistry cr =
         new ClientRegistry(
-            configuration.getMembers().stream()
-                .map(ServerDesc::getUrl)
-                .collect(Collectors.toList()),
-            this.getFhirContext());
+            configuration.getMembers(),
+            this.getFhirContext(),
+            executor,
+            configuration.getCircuitBreaker());
     ResourceRegistry rr = new ResourceRegistry(configuration.getResources().getDefault());
     for (Entry<String, ResourceConfig> entry : configuration.resources.other.entrySet()) {
 
       rr.putResourceConfig(entry.getKey(), entry.getValue());
     }
+    cr.setFhirPathEngines(new FhirPathEngines(this.getFhirContext(), cr, rr));
     SearchParam2FhirPathRegistry s2f = new SearchParam2FhirPathRegistry();
     List<SearchParameter> sps = new ArrayList<>();
     Setup setup = configuration.getSetup();
@@ -89,12 +92,22 @@ public class FederatorRestfulServer extends RestfulServer {
     }
 
     registerProvider(new CapabilityStatementProvider(cr, rr));
-    registerProvider(new FederatedSearchProvider(cr, rr, this.getFhirContext(), s2f));
+    FhirUrlParsing.warmUp();
+    QueryPlanner planner = new QueryPlanner(cr, rr, configuration.getPlanner());
+    registerProvider(
+        new FederatedSearchProvider(
+            cr, rr, this.getFhirContext(), s2f, planner, configuration.getInclude()));
     setPagingProvider(new MapDbPagingProvider(this.getFhirContext(), pagingFile, 10, 100));
     registerInterceptor(new FederatorInterceptor());
     registerInterceptor(new ResponseHighlighterInterceptor());
   }
 
+  @Override
+  public void destroy() {
+    super.destroy();
+    executor.shutdown();
+  }
+
   private File setupPagingFile() {
     File pagingFile = new File(System.getProperty("java.io.tmpdir") + File.separator + "paging.db");
 
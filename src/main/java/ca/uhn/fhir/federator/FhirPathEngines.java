@@ -0,0 +1,54 @@
+package ca.uhn.fhir.federator;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Function;
+
+import org.hl7.fhir.r4.hapi.ctx.HapiWorkerContext;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.fhirpath.IFhirPath;
+
+/**
+ * Pool of FHIRPath engines with the reference resolver of the federator. Building an engine and
+ * its worker context is expensive, so the worker context is shared and an engine is reused once
+ * it is returned. An engine is not thread-safe: it is used by one caller at a time, but not bound
+ * to a thread, so tasks that run inside an evaluation, e.g. for {@code resolve()}, borrow another.
+ */
+public class FhirPathEngines {
+  private final FhirContext ctx;
+  private final ClientRegistry cr;
+  private final ResourceRegistry rr;
+  private final HapiWorkerContext worker;
+  private final Queue<IFhirPath> idle = new ConcurrentLinkedQueue<>();
+
+  public FhirPathEngines(FhirContext ctx, ClientRegistry cr, ResourceRegistry rr) {
+    this.ctx = ctx;
+    this.cr = cr;
+    this.rr = rr;
+    this.worker = new HapiWorkerContext(ctx, ctx.getValidationSupport());
+  }
+
+  /** Applies the body to an engine of the pool, a new one when all engines are in use. */
+  public <T> T with(Function<IFhirPath, T> body) {
+    IFhirPath engine = idle.poll();
+    if (engine == null) {
+      engine = new FhirPathR4WithResolver(worker, ctx, cr, rr);
+    }
+    try {
+      return body.apply(engine);
+    } finally {
+      idle.offer(engine);
+    }
+  }
+
+  /** An engine of the pool of the registry, or a new engine when there is no pool. */
+  static <T> T with(
+      ClientRegistry cr, FhirContext ctx, ResourceRegistry rr, Function<IFhirPath, T> body) {
+    FhirPathEngines engines = cr == null ? null : cr.getFhirPathEngines();
+    if (engines == null) {
+      return body.apply(new FhirPathR4WithResolver(ctx, cr, rr));
+    }
+    return engines.with(body);
+  }
+}
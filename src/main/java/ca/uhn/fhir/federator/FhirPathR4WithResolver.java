@@ -10,7 +10,6 @@ import org.hl7.fhir.r4.model.Base;
 import org.hl7.fhir.r4.utils.FHIRPathEngine;
 
 import ca.uhn.fhir.context.FhirContext;
-import ca.uhn.fhir.context.support.IValidationSupport;
 import ca.uhn.fhir.fhirpath.FhirPathExecutionException;
 import ca.uhn.fhir.fhirpath.IFhirPath;
 
@@ -19,8 +18,13 @@ public class FhirPathR4WithResolver implements IFhirPath {
   private final FHIRPathEngine myEngine;
 
   public FhirPathR4WithResolver(FhirContext theCtx, ClientRegistry cr, ResourceRegistry rr) {
-    IValidationSupport validationSupport = theCtx.getValidationSupport();
-    myEngine = new FHIRPathEngine(new HapiWorkerContext(theCtx, validationSupport));
+    this(new HapiWorkerContext(theCtx, theCtx.getValidationSupport()), theCtx, cr, rr);
+  }
+
+  /** With a worker context shared with other engines, see {@link FhirPathEngines}. */
+  public FhirPathR4WithResolver(
+      HapiWorkerContext worker, FhirContext theCtx, ClientRegistry cr, ResourceRegistry rr) {
+    myEngine = new FHIRPathEngine(worker);
     myEngine.setHostServices(
         new EvaluationContextWithResolver(myEngine.getHostServices(), theCtx, cr, rr));
   }
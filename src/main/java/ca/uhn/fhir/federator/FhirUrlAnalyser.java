@@ -19,6 +19,8 @@ public class FhirUrlAnalyser extends FhirUrlBaseVisitor<Object> {
   private final List<List<ParserRuleContext>> resources = new ArrayList<>();
   private final List<ParserRuleContext> httpParams = new ArrayList<>();
   private final Map<ParserRuleContext, Integer> toIndex = new HashMap<>();
+  // every resource of the tree, in the order of their tokens
+  private final List<FContext> allResources = new ArrayList<>();
 
   public List<ParserRuleContext> getAndParameters() {
     List<ParserRuleContext> andParams =
@@ -70,6 +72,31 @@ public class FhirUrlAnalyser extends FhirUrlBaseVisitor<Object> {
     return retVal;
   }
 
+  /**
+   * The resources in a subtree of the visited tree, in the order of a visit of that subtree. A
+   * resource is a single token, so these are the resources within the tokens of the subtree.
+   */
+  public List<FContext> getResourcesIn(ParserRuleContext subtree) {
+    int from = indexOf(subtree.getStart().getTokenIndex());
+    int to = indexOf(subtree.getStop().getTokenIndex() + 1);
+    return allResources.subList(from, to);
+  }
+
+  /** The index of the first resource at or after the token. */
+  private int indexOf(int tokenIndex) {
+    int low = 0;
+    int high = allResources.size();
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      if (allResources.get(mid).getStart().getTokenIndex() < tokenIndex) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
+    }
+    return low;
+  }
+
   public List<ParserRuleContext> getHttpParams() {
     return httpParams;
   }
@@ -81,6 +108,7 @@ public class FhirUrlAnalyser extends FhirUrlBaseVisitor<Object> {
     }
     List<ParserRuleContext> temp = resources.get(currentIndex);
     temp.add(ctx);
+    allResources.add(ctx);
     return super.visitF(ctx);
   }
 
@@ -0,0 +1,83 @@
+package ca.uhn.fhir.federator;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.antlr.v4.runtime.BailErrorStrategy;
+import org.antlr.v4.runtime.CharStreams;
+import org.antlr.v4.runtime.CommonTokenStream;
+import org.antlr.v4.runtime.DefaultErrorStrategy;
+import org.antlr.v4.runtime.ListTokenSource;
+import org.antlr.v4.runtime.Token;
+import org.antlr.v4.runtime.atn.PredictionMode;
+import org.antlr.v4.runtime.misc.ParseCancellationException;
+
+import ca.uhn.fhir.federator.FhirUrlParser.SContext;
+
+/**
+ * Parses queries in two stages: with SLL prediction first, which is enough for nearly every query,
+ * and with full LL prediction only when SLL fails. The DFA cache of the parser is shared by all
+ * parser instances; {@link #warmUp()} fills it at startup so the first requests do not pay for it.
+ */
+final class FhirUrlParsing {
+  private static final org.slf4j.Logger ourLog =
+      org.slf4j.LoggerFactory.getLogger(FhirUrlParsing.class);
+
+  static final String WARM_UP_QUERIES = "/parser-warmup.txt";
+
+  private FhirUrlParsing() {}
+
+  /** Parses the tokens of a lexed query. */
+  static SContext parse(List<Token> tokens) {
+    CommonTokenStream tokenStream = new CommonTokenStream(new ListTokenSource(tokens));
+    FhirUrlParser parser = new FhirUrlParser(tokenStream);
+    parser.removeErrorListeners();
+    parser.setErrorHandler(new BailErrorStrategy());
+    parser.getInterpreter().setPredictionMode(PredictionMode.SLL);
+    try {
+      return parser.s();
+    } catch (ParseCancellationException e) {
+      // a syntax error, or a query that needs the full context: parse again, reporting errors
+      ourLog.debug("SLL parsing failed, parsing with LL");
+      parser.reset();
+      parser.addErrorListener(new ParserErrorListener());
+      parser.setErrorHandler(new DefaultErrorStrategy());
+      parser.getInterpreter().setPredictionMode(PredictionMode.LL);
+      return parser.s();
+    }
+  }
+
+  /** Parses the queries of {@value #WARM_UP_QUERIES}. */
+  static void warmUp() {
+    long start = System.currentTimeMillis();
+    List<String> queries = readWarmUpQueries();
+    for (String query : queries) {
+      parse(new FhirUrlLexer(CharStreams.fromString(query)).getAllTokens());
+    }
+    ourLog.info(
+        "Parser warmed up with {} queries in {} ms",
+        queries.size(),
+        System.currentTimeMillis() - start);
+  }
+
+  static List<String> readWarmUpQueries() {
+    try (InputStream in = FhirUrlParsing.class.getResourceAsStream(WARM_UP_QUERIES)) {
+      if (in == null) {
+        return List.of();
+      }
+      return new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))
+          .lines()
+          .map(String::trim)
+          .filter(x -> !x.isEmpty() && !x.startsWith("#"))
+          .collect(Collectors.toList());
+    } catch (IOException e) {
+      ourLog.warn("Could not read {}: {}", WARM_UP_QUERIES, e.getMessage());
+      return List.of();
+    }
+  }
+}
@@ -0,0 +1,278 @@
+package ca.uhn.fhir.federator;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Identifier;
+
+/**
+ * Intersection of two result lists on identifiers, as a hash join. Gives the same result as
+ * testing every pair with {@link IBaseResourcePredicate}:
+ *
+ * <ul>
+ *   <li>without configured identifiers, two resources match when their first identifiers are equal
+ *   <li>otherwise they match when, for every configured group, they share an identifier with one of
+ *       the systems of that group
+ * </ul>
+ *
+ * The identifiers of every resource are read once; the smaller list is indexed on {@code
+ * system|value} per group and the larger one probes that index.
+ */
+public class IdentifierJoin {
+
+  private final ResourceRegistry rr;
+  private final Map<Class<?>, GetIdentifierHelper> helpers = new HashMap<>();
+
+  public IdentifierJoin(ResourceRegistry rr) {
+    this.rr = rr;
+  }
+
+  /** The distinct resources of {@code list} that match a resource of {@code list2}. */
+  public List<IBaseResource> intersection(List<IBaseResource> list, List<IBaseResource> list2) {
+    List<IBaseResource> retVal = new ArrayList<>();
+    List<List<IBaseResource>> types = groupByType(list);
+    // the configured identifiers depend on the type of the resources of the first list
+    for (List<IBaseResource> sameType : types) {
+      String resource = sameType.get(0).getClass().getSimpleName();
+      List<List<String>> filter = rr.getServer4Resource(resource).getIdentifiers();
+      BitSet matched = join(keys(sameType, filter), keys(list2, filter));
+      for (int i = matched.nextSetBit(0); i >= 0; i = matched.nextSetBit(i + 1)) {
+        retVal.add(sameType.get(i));
+      }
+    }
+    if (types.size() > 1) {
+      // back in the order of the first list
+      Map<IBaseResource, Integer> order = new HashMap<>();
+      for (int i = 0; i < list.size(); i++) {
+        order.putIfAbsent(list.get(i), i);
+      }
+      retVal.sort((a, b) -> Integer.compare(order.get(a), order.get(b)));
+    }
+    return retVal;
+  }
+
+  /**
+   * The distinct resources of the list grouped with the resources they match, directly or through
+   * other resources of the group. The groups are in the order of their first resource in the list.
+   */
+  public List<List<IBaseResource>> group(List<IBaseResource> list) {
+    List<List<IBaseResource>> retVal = new ArrayList<>();
+    for (List<IBaseResource> sameType : groupByType(list)) {
+      String resource = sameType.get(0).getClass().getSimpleName();
+      List<List<String>> filter = rr.getServer4Resource(resource).getIdentifiers();
+      List<List<Set<String>>> keys = keys(sameType, filter);
+      int[] parent = new int[sameType.size()];
+      for (int i = 0; i < parent.length; i++) {
+        parent[i] = i;
+      }
+      // only resources that share a key of the first group can match
+      for (BitSet candidates : index(keys).stream().findFirst().orElse(Map.of()).values()) {
+        for (int i = candidates.nextSetBit(0); i >= 0; i = candidates.nextSetBit(i + 1)) {
+          for (int j = candidates.nextSetBit(i + 1); j >= 0; j = candidates.nextSetBit(j + 1)) {
+            if (find(parent, i) != find(parent, j) && matches(keys.get(i), keys.get(j))) {
+              parent[find(parent, j)] = find(parent, i);
+            }
+          }
+        }
+      }
+      Map<Integer, List<IBaseResource>> groups = new LinkedHashMap<>();
+      for (int i = 0; i < sameType.size(); i++) {
+        groups.computeIfAbsent(find(parent, i), k -> new ArrayList<>()).add(sameType.get(i));
+      }
+      retVal.addAll(groups.values());
+    }
+    Map<IBaseResource, Integer> order = new HashMap<>();
+    for (int i = 0; i < list.size(); i++) {
+      order.putIfAbsent(list.get(i), i);
+    }
+    retVal.sort((a, b) -> Integer.compare(order.get(a.get(0)), order.get(b.get(0))));
+    return retVal;
+  }
+
+  private static int find(int[] parent, int i) {
+    while (parent[i] != i) {
+      parent[i] = parent[parent[i]];
+      i = parent[i];
+    }
+    return i;
+  }
+
+  /** Whether two resources share a key in every group. */
+  private static boolean matches(List<Set<String>> keys, List<Set<String>> keys2) {
+    for (int group = 0; group < keys.size(); group++) {
+      if (Collections.disjoint(keys.get(group), keys2.get(group))) {
+        return false;
+      }
+    }
+    return !keys.isEmpty();
+  }
+
+  /**
+   * The identifiers of which a resource needs at least one to match one of the given resources, all
+   * of the same type. Empty when a match does not need an identifier with a value, it then cannot
+   * be asked for with an {@code identifier} search.
+   */
+  public Optional<List<Identifier>> getJoinIdentifiers(List<IBaseResource> resources) {
+    List<Identifier> retVal = new ArrayList<>();
+    if (resources.isEmpty()) {
+      return Optional.of(retVal);
+    }
+    String resource = resources.get(0).getClass().getSimpleName();
+    List<List<String>> filter = rr.getServer4Resource(resource).getIdentifiers();
+    for (IBaseResource candidate : resources) {
+      List<Identifier> identifiers = getIdentifiers(candidate);
+      if (filter == null || filter.isEmpty()) {
+        if (identifiers.isEmpty()) {
+          // matches nothing
+          continue;
+        }
+        if (identifiers.get(0).getValue() == null) {
+          // matches every resource with the same first identifier without value
+          return Optional.empty();
+        }
+        retVal.add(identifiers.get(0));
+      } else {
+        // the first group has to match, the others are checked by the intersection
+        for (Identifier identifier : identifiers) {
+          if (isIn(identifier, filter.get(0))) {
+            retVal.add(identifier);
+          }
+        }
+      }
+    }
+    return Optional.of(retVal);
+  }
+
+  /** Which resources of the left side match a resource of the right side. */
+  private static BitSet join(List<List<Set<String>>> left, List<List<Set<String>>> right) {
+    BitSet retVal = new BitSet(left.size());
+    if (left.size() <= right.size()) {
+      List<Map<String, BitSet>> index = index(left);
+      for (List<Set<String>> probe : right) {
+        retVal.or(probe(index, probe));
+      }
+    } else {
+      List<Map<String, BitSet>> index = index(right);
+      for (int i = 0; i < left.size(); i++) {
+        if (!probe(index, left.get(i)).isEmpty()) {
+          retVal.set(i);
+        }
+      }
+    }
+    return retVal;
+  }
+
+  /** Per group: the resources, by position, that have a key. */
+  private static List<Map<String, BitSet>> index(List<List<Set<String>>> keys) {
+    List<Map<String, BitSet>> retVal = new ArrayList<>();
+    for (int i = 0; i < keys.size(); i++) {
+      List<Set<String>> groups = keys.get(i);
+      for (int group = 0; group < groups.size(); group++) {
+        if (retVal.size() <= group) {
+          retVal.add(new HashMap<>());
+        }
+        for (String key : groups.get(group)) {
+          retVal.get(group).computeIfAbsent(key, k -> new BitSet()).set(i);
+        }
+      }
+    }
+    return retVal;
+  }
+
+  /** The indexed resources that share a key with the probe in every group. */
+  private static BitSet probe(List<Map<String, BitSet>> index, List<Set<String>> probe) {
+    BitSet retVal = null;
+    for (int group = 0; group < probe.size(); group++) {
+      BitSet inGroup = new BitSet();
+      if (group < index.size()) {
+        for (String key : probe.get(group)) {
+          BitSet hits = index.get(group).get(key);
+          if (hits != null) {
+            inGroup.or(hits);
+          }
+        }
+      }
+      if (retVal == null) {
+        retVal = inGroup;
+      } else {
+        retVal.and(inGroup);
+      }
+      if (retVal.isEmpty()) {
+        break;
+      }
+    }
+    return retVal == null ? new BitSet() : retVal;
+  }
+
+  /** Per resource and per group the {@code system|value} keys the resource can match on. */
+  private List<List<Set<String>>> keys(List<IBaseResource> resources, List<List<String>> filter) {
+    List<List<Set<String>>> retVal = new ArrayList<>(resources.size());
+    for (IBaseResource resource : resources) {
+      List<Identifier> identifiers = getIdentifiers(resource);
+      List<Set<String>> groups = new ArrayList<>();
+      if (filter == null || filter.isEmpty()) {
+        Set<String> first = new LinkedHashSet<>();
+        if (!identifiers.isEmpty()) {
+          first.add(key(identifiers.get(0)));
+        }
+        groups.add(first);
+      } else {
+        for (List<String> systems : filter) {
+          Set<String> group = new LinkedHashSet<>();
+          for (Identifier identifier : identifiers) {
+            if (isIn(identifier, systems)) {
+              group.add(key(identifier));
+            }
+          }
+          groups.add(group);
+        }
+      }
+      retVal.add(groups);
+    }
+    return retVal;
+  }
+
+  private List<Identifier> getIdentifiers(IBaseResource resource) {
+    if (resource == null) {
+      return List.of();
+    }
+    return helpers
+        .computeIfAbsent(resource.getClass(), GetIdentifierHelper::new)
+        .getIdentifier(resource);
+  }
+
+  /** Whether the identifier has a value and one of the systems, never when it has no system. */
+  private static boolean isIn(Identifier identifier, List<String> systems) {
+    return identifier.getValue() != null
+        && identifier.getSystem() != null
+        && systems.contains(identifier.getSystem());
+  }
+
+  private static String key(Identifier identifier) {
+    // a null system or value only equals null, as in Objects.equals
+    String system = identifier.getSystem() == null ? "\0" : identifier.getSystem();
+    String value = identifier.getValue() == null ? "\0" : identifier.getValue();
+    return system + "|" + value;
+  }
+
+  /** The distinct resources of the list, per type in the order of the list. */
+  private static List<List<IBaseResource>> groupByType(List<IBaseResource> list) {
+    Map<Class<?>, List<IBaseResource>> retVal = new LinkedHashMap<>();
+    Set<IBaseResource> seen = new LinkedHashSet<>();
+    for (IBaseResource resource : list) {
+      if (resource != null && seen.add(resource)) {
+        retVal.computeIfAbsent(resource.getClass(), k -> new ArrayList<>()).add(resource);
+      }
+    }
+    return new ArrayList<>(retVal.values());
+  }
+}
@@ -0,0 +1,35 @@
+package ca.uhn.fhir.federator;
+
+import java.util.Arrays;
+
+/** Rolling window with the latencies of the last requests towards one member server. */
+public class LatencyWindow {
+  private final long[] samples;
+  private int next;
+  private int count;
+
+  public LatencyWindow(int size) {
+    this.samples = new long[size];
+  }
+
+  public synchronized void record(long millis) {
+    samples[next] = millis;
+    next = (next + 1) % samples.length;
+    count = Math.min(count + 1, samples.length);
+  }
+
+  public synchronized int getCount() {
+    return count;
+  }
+
+  /** The given percentile (0-100) of the window, or -1 as long as the window is empty. */
+  public synchronized long getPercentile(int percentile) {
+    if (count == 0) {
+      return -1;
+    }
+    long[] sorted = Arrays.copyOf(samples, count);
+    Arrays.sort(sorted);
+    int index = (int) Math.ceil(percentile / 100.0 * count) - 1;
+    return sorted[Math.max(0, Math.min(index, count - 1))];
+  }
+}
@@ -0,0 +1,230 @@
+package ca.uhn.fhir.federator;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IPrimitiveType;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Bundle.BundleEntryComponent;
+import org.hl7.fhir.r4.model.InstantType;
+
+import ca.uhn.fhir.rest.api.server.IBundleProvider;
+
+/**
+ * Results of member searches that are only fetched when they are read. The first read requests
+ * the first page of every member search at once; {@link #getResources} then adds the pages in the
+ * order in which they arrive, while the next page of each member is already requested, until it
+ * has enough resources. A slow member therefore does not hold back the others. The size is unknown
+ * until every member search is read, so HAPI stores the provider in the paging provider and asks
+ * it for the next pages later.
+ *
+ * <p>Those later reads are outside the request that started the search, so the provider collects
+ * their warnings itself and adds them, with the warnings of the search, after the results.
+ */
+public class LazyBundleProvider implements IBundleProvider {
+  private static final org.slf4j.Logger ourLog =
+      org.slf4j.LoggerFactory.getLogger(LazyBundleProvider.class);
+
+  /** One member search, with the maximum number of resources it may add. */
+  public static class Source {
+    private final String url;
+    private final Supplier<BundlePager> pager;
+    private final int maxResources;
+
+    public Source(String url, Supplier<BundlePager> pager, int maxResources) {
+      this.url = url;
+      this.pager = pager;
+      this.maxResources = maxResources;
+    }
+  }
+
+  /** A member search that is being read. */
+  private static class Reader {
+    private final Source source;
+    private final BundlePager pager;
+    private int read;
+
+    Reader(Source source, BundlePager pager) {
+      this.source = source;
+      this.pager = pager;
+    }
+  }
+
+  private final IPrimitiveType<Date> published = new InstantType(new Date());
+  private final List<Source> sources;
+  private final List<String> warnings;
+  // the warnings as resources, added after the results of the member searches
+  private final Function<List<String>, List<IBaseResource>> outcome;
+  private final FanoutScope scope = FanoutScope.detached();
+  private final List<IBaseResource> resources = new ArrayList<>();
+  // the requested pages, in the order in which they arrive
+  private final BlockingQueue<Future<Bundle>> arrived = new LinkedBlockingQueue<>();
+  // the member search of every requested page that is not read yet
+  private final Map<Future<Bundle>, Reader> requested = new HashMap<>();
+  private boolean started;
+  private boolean complete;
+  private volatile boolean closed;
+
+  public LazyBundleProvider(
+      List<Source> sources,
+      List<String> warnings,
+      Function<List<String>, List<IBaseResource>> outcome) {
+    this.sources = new ArrayList<>(sources);
+    this.warnings = new ArrayList<>(warnings);
+    this.outcome = outcome;
+  }
+
+  @Override
+  public IPrimitiveType<Date> getPublished() {
+    return published;
+  }
+
+  @Override
+  public synchronized List<IBaseResource> getResources(int theFromIndex, int theToIndex) {
+    fill(theToIndex);
+    int to = Math.min(theToIndex, resources.size());
+    return new ArrayList<>(resources.subList(Math.min(theFromIndex, to), to));
+  }
+
+  @Override
+  public synchronized List<IBaseResource> getAllResources() {
+    fill(Integer.MAX_VALUE);
+    return new ArrayList<>(resources);
+  }
+
+  @Override
+  public String getUuid() {
+    return null;
+  }
+
+  @Override
+  public Integer preferredPageSize() {
+    return null;
+  }
+
+  /** Unknown until every member search is read. */
+  @Override
+  public synchronized Integer size() {
+    return complete ? resources.size() : null;
+  }
+
+  @Override
+  public synchronized boolean isEmpty() {
+    fill(1);
+    return resources.isEmpty();
+  }
+
+  /**
+   * Stops reading: cancels the requested pages, the resources read so far stay. Does not wait for a
+   * read in progress, that read stops when its page is cancelled.
+   */
+  public void close() {
+    closed = true;
+    scope.cancel();
+  }
+
+  /** Reads pages until there are {@code count} resources or all member searches are read. */
+  private void fill(int count) {
+    if (resources.size() < count && !complete) {
+      scope.run(() -> read(count));
+    }
+  }
+
+  private void read(int count) {
+    if (!started && !closed) {
+      start();
+    }
+    while (resources.size() < count && !requested.isEmpty() && !closed) {
+      Reader reader = requested.remove(take());
+      // null for a page cancelled after a limit
+      if (reader != null && add(reader, nextPage(reader))) {
+        request(reader);
+      }
+    }
+    if (closed) {
+      requested.values().forEach(reader -> reader.pager.close());
+      requested.clear();
+    }
+    if (requested.isEmpty()) {
+      warnings.addAll(scope.getWarnings());
+      resources.addAll(outcome.apply(warnings));
+      complete = true;
+    }
+  }
+
+  /** Requests the first page of every member search. */
+  private void start() {
+    started = true;
+    for (Source source : sources) {
+      ourLog.info("Client request Url: {}", source.url);
+      BundlePager pager = source.pager.get();
+      pager.start(arrived);
+      request(new Reader(source, pager));
+    }
+  }
+
+  /** Waits for the next page of the reader, or ends the reader when it has no next page. */
+  private void request(Reader reader) {
+    Future<Bundle> page = reader.pager.getPending();
+    if (page != null) {
+      requested.put(page, reader);
+    } else {
+      ourLog.info(
+          "Client request Url: {} #{} in {} pages",
+          reader.source.url,
+          reader.read,
+          reader.pager.getPages());
+      reader.pager.close();
+    }
+  }
+
+  /** Adds the resources of the page, false when the member search reached its limit. */
+  private boolean add(Reader reader, Bundle page) {
+    for (BundleEntryComponent bec : page.getEntry()) {
+      if (bec.getResource() == null) {
+        continue;
+      }
+      if (reader.read >= reader.source.maxResources) {
+        Source source = reader.source;
+        ourLog.warn("Stopped after {} resources: {}", source.maxResources, source.url);
+        FanoutScope.warn(
+            ParameterExecutor.cutOff(source.url, source.maxResources + " resources"));
+        reader.pager.close();
+        return false;
+      }
+      resources.add(bec.getResource());
+      reader.read++;
+    }
+    return true;
+  }
+
+  /** The page that arrived, it is done so reading it does not block. */
+  private static Bundle nextPage(Reader reader) {
+    try {
+      return reader.pager.next();
+    } catch (RuntimeException e) {
+      // only the first page throws, when the member rejects the search
+      ourLog.error("Request failed: {} {}", reader.source.url, e.getMessage());
+      reader.pager.close();
+      return new Bundle();
+    }
+  }
+
+  private Future<Bundle> take() {
+    try {
+      return arrived.take();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while waiting for a member request", e);
+    }
+  }
+}
@@ -3,7 +3,9 @@ package ca.uhn.fhir.federator;
 import java.io.File;
 import java.io.IOException;
 import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
 import java.util.stream.Collectors;
 
@@ -62,10 +64,26 @@ public class MapDbPagingProvider implements IPagingProvider {
     }
   }
 
+  // lazy results are not read completely to be stored, the most recent ones stay in memory
+  private static final int MAX_LAZY_RESULTS = 100;
+
   private final int defaultPageSize;
   private final int maximumPageSize;
   private final DB db;
   final HTreeMap<String, List<IBaseResource>> map;
+  private final Map<String, LazyBundleProvider> lazy =
+      Collections.synchronizedMap(
+          new LinkedHashMap<String, LazyBundleProvider>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, LazyBundleProvider> eldest) {
+              if (size() <= MAX_LAZY_RESULTS) {
+                return false;
+              }
+              // cancels its requested pages, without waiting for a read of the provider
+              eldest.getValue().close();
+              return true;
+            }
+          });
   private static final org.slf4j.Logger ourLog =
       org.slf4j.LoggerFactory.getLogger(MapDbPagingProvider.class);
 
@@ -92,6 +110,10 @@ public class MapDbPagingProvider implements IPagingProvider {
   @Override
   public IBundleProvider retrieveResultList(
       RequestDetails theRequestDetails, @NotNull String theSearchId) {
+    IBundleProvider lazyResults = lazy.get(theSearchId);
+    if (lazyResults != null) {
+      return lazyResults;
+    }
     SimpleBundleProvider retVal = null;
 
     try {
@@ -108,6 +130,11 @@ public class MapDbPagingProvider implements IPagingProvider {
     UUID uuid = UUID.randomUUID();
     String id = uuid.toString();
 
+    if (theList instanceof LazyBundleProvider) {
+      lazy.put(id, (LazyBundleProvider) theList);
+      return id;
+    }
+
     try {
 
       map.put(id, theList.getAllResources());
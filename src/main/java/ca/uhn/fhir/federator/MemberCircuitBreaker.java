@@ -0,0 +1,125 @@
+package ca.uhn.fhir.federator;
+
+import java.util.Optional;
+
+import ca.uhn.fhir.federator.FederatorProperties.CircuitBreaker;
+
+/**
+ * Circuit breaker for one member server, fed with the outcome of the last requests.
+ *
+ * <p>The breaker opens when too many of the requests in the window failed or were too slow. While
+ * open the member is skipped. After the open duration one probe request is let through: when it
+ * succeeds the member is admitted again, otherwise the breaker stays open.
+ */
+public class MemberCircuitBreaker {
+  private static final org.slf4j.Logger ourLog =
+      org.slf4j.LoggerFactory.getLogger(MemberCircuitBreaker.class);
+
+  public static final int DEFAULT_WINDOW_SIZE = 50;
+  public static final int DEFAULT_MINIMUM_CALLS = 10;
+  public static final int DEFAULT_FAILURE_RATE = 50;
+  public static final int DEFAULT_OPEN_DURATION = 30000;
+
+  enum State {
+    CLOSED,
+    OPEN,
+    HALF_OPEN
+  }
+
+  private final String base;
+  private final boolean enabled;
+  private final boolean[] failures;
+  private final int minimumCalls;
+  private final int failureRate;
+  private final long slowCall;
+  private final long openDuration;
+
+  private State state = State.CLOSED;
+  private int next;
+  private int count;
+  private int failed;
+  private long openedAt;
+  private long probeStartedAt;
+
+  public MemberCircuitBreaker(String base, CircuitBreaker config) {
+    Optional<CircuitBreaker> cb = Optional.ofNullable(config);
+    this.base = base;
+    this.enabled = cb.map(CircuitBreaker::getEnabled).orElse(true);
+    this.failures = new boolean[cb.map(CircuitBreaker::getWindowSize).orElse(DEFAULT_WINDOW_SIZE)];
+    this.minimumCalls = cb.map(CircuitBreaker::getMinimumCalls).orElse(DEFAULT_MINIMUM_CALLS);
+    this.failureRate = cb.map(CircuitBreaker::getFailureRate).orElse(DEFAULT_FAILURE_RATE);
+    this.slowCall = cb.map(CircuitBreaker::getSlowCall).orElse(Integer.MAX_VALUE);
+    this.openDuration = cb.map(CircuitBreaker::getOpenDuration).orElse(DEFAULT_OPEN_DURATION);
+  }
+
+  /** Whether a request may be sent to the member now. */
+  public synchronized boolean allowRequest() {
+    if (!enabled || state == State.CLOSED) {
+      return true;
+    }
+    long now = System.currentTimeMillis();
+    if (state == State.OPEN && now - openedAt >= openDuration) {
+      state = State.HALF_OPEN;
+      probeStartedAt = 0;
+    }
+    // a probe that never reported back does not block the member forever
+    if (state == State.HALF_OPEN && (probeStartedAt == 0 || now - probeStartedAt >= openDuration)) {
+      probeStartedAt = now;
+      ourLog.info("Probing member {}", base);
+      return true;
+    }
+    return false;
+  }
+
+  public synchronized void recordSuccess(long millis) {
+    record(millis > slowCall);
+  }
+
+  public synchronized void recordFailure() {
+    record(true);
+  }
+
+  public synchronized State getState() {
+    return state;
+  }
+
+  private void record(boolean failure) {
+    if (!enabled) {
+      return;
+    }
+    if (state == State.HALF_OPEN) {
+      if (failure) {
+        open();
+      } else {
+        ourLog.info("Member {} admitted again", base);
+        reset();
+      }
+      return;
+    }
+    if (count == failures.length && failures[next]) {
+      failed--;
+    }
+    failures[next] = failure;
+    if (failure) {
+      failed++;
+    }
+    next = (next + 1) % failures.length;
+    count = Math.min(count + 1, failures.length);
+    if (state == State.CLOSED && count >= minimumCalls && failed * 100 >= failureRate * count) {
+      open();
+    }
+  }
+
+  private void open() {
+    ourLog.warn("Member {} skipped: {} of the last {} requests failed", base, failed, count);
+    state = State.OPEN;
+    openedAt = System.currentTimeMillis();
+  }
+
+  private void reset() {
+    state = State.CLOSED;
+    next = 0;
+    count = 0;
+    failed = 0;
+  }
+}
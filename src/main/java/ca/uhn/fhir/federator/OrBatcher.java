@@ -0,0 +1,141 @@
+package ca.uhn.fhir.federator;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.lang3.StringUtils;
+
+import ca.uhn.fhir.federator.FederatorProperties.ServerDesc;
+
+/**
+ * Packs the values of an OR search (the identifiers of a chained search) into as few requests
+ * towards one member as possible. A request holds as many values as fit in the maximum URL length
+ * of the member, and at most the batch size.
+ *
+ * <p>The batch size adapts to the member: it grows while the member answers fast, and is halved
+ * when the member gets slow or rejects a request as too long.
+ */
+public class OrBatcher {
+  private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(OrBatcher.class);
+
+  public static final int DEFAULT_MAX_URL_LENGTH = 2048;
+  public static final int INITIAL_BATCH_SIZE = 10;
+  public static final int POST_BATCH_SIZE = 5000;
+  static final int MAX_BATCH_SIZE = 1000;
+  static final int MIN_URL_LENGTH = 256;
+  static final long FAST_RESPONSE_MILLIS = 1000;
+  static final long SLOW_RESPONSE_MILLIS = 5000;
+
+  private final String base;
+  private final Integer maxOr;
+  private final AtomicInteger batchSize = new AtomicInteger(INITIAL_BATCH_SIZE);
+  private final int configuredMaxUrlLength;
+  private volatile int maxUrlLength;
+
+  public OrBatcher(ServerDesc member) {
+    this.base = member.getUrl();
+    this.maxOr = member.getMaxOr();
+    this.configuredMaxUrlLength =
+        Optional.ofNullable(member.getMaxUrlLength()).orElse(DEFAULT_MAX_URL_LENGTH);
+    this.maxUrlLength = configuredMaxUrlLength;
+  }
+
+  /**
+   * Splits a search on a comma separated list of values into the requests for this member.
+   *
+   * @param resourceMaxOr the maximum number of values configured for the resource, or null
+   * @param post whether the batches are sent in the body of a POST, the URL length does not
+   *     matter then
+   */
+  public List<ParsedUrl> split(ParsedUrl url, Integer resourceMaxOr, boolean post) {
+    String value = url.getValue();
+    if (value == null || value.indexOf(',') < 0) {
+      return List.of(url);
+    }
+    int limit = getLimit(post ? POST_BATCH_SIZE : batchSize.get(), resourceMaxOr);
+    // what is left of the URL for the values, the values are already URL encoded
+    int budget =
+        post
+            ? Integer.MAX_VALUE
+            : maxUrlLength - base.length() - 1 - url.withValue("").toString().length();
+    List<ParsedUrl> retVal = new ArrayList<>();
+    StringBuilder batch = new StringBuilder();
+    int count = 0;
+    for (String part : StringUtils.split(value, ',')) {
+      if (count > 0 && (count >= limit || batch.length() + 1 + part.length() > budget)) {
+        retVal.add(url.withValue(batch.toString()));
+        batch.setLength(0);
+        count = 0;
+      }
+      if (count > 0) {
+        batch.append(',');
+      }
+      batch.append(part);
+      count++;
+    }
+    if (count > 0) {
+      retVal.add(url.withValue(batch.toString()));
+    }
+    return retVal;
+  }
+
+  /** Splits the values of a rejected request in two halves, a single value cannot be split. */
+  public static List<ParsedUrl> halve(ParsedUrl url) {
+    String value = url.getValue();
+    if (value == null || value.indexOf(',') < 0) {
+      return List.of(url);
+    }
+    String[] parts = StringUtils.split(value, ',');
+    int middle = parts.length / 2;
+    return List.of(
+        url.withValue(StringUtils.join(Arrays.copyOfRange(parts, 0, middle), ",")),
+        url.withValue(StringUtils.join(Arrays.copyOfRange(parts, middle, parts.length), ",")));
+  }
+
+  /** Feeds the response time of a request towards the member. */
+  public void onResponse(long millis) {
+    if (millis < FAST_RESPONSE_MILLIS) {
+      batchSize.updateAndGet(size -> Math.min(MAX_BATCH_SIZE, size + Math.max(1, size / 4)));
+    } else if (millis > SLOW_RESPONSE_MILLIS) {
+      batchSize.updateAndGet(size -> Math.max(1, size / 2));
+    }
+  }
+
+  /** The member rejected a request of {@code urlLength} characters (414 or 400). */
+  public void onRejected(int urlLength) {
+    int shorter = Math.max(MIN_URL_LENGTH, Math.min(maxUrlLength, urlLength * 3 / 4));
+    if (shorter < maxUrlLength) {
+      ourLog.warn(
+          "Member {} rejected a URL of {} characters, now using {}", base, urlLength, shorter);
+      maxUrlLength = shorter;
+    }
+    batchSize.updateAndGet(size -> Math.max(1, size / 2));
+  }
+
+  public int getBatchSize() {
+    return batchSize.get();
+  }
+
+  public int getMaxUrlLength() {
+    return maxUrlLength;
+  }
+
+  /** The maximum URL length of the member before any rejection, see {@link #onRejected}. */
+  public int getConfiguredMaxUrlLength() {
+    return configuredMaxUrlLength;
+  }
+
+  private int getLimit(int size, Integer resourceMaxOr) {
+    int limit = size;
+    if (maxOr != null) {
+      limit = Math.min(limit, maxOr);
+    }
+    if (resourceMaxOr != null) {
+      limit = Math.min(limit, resourceMaxOr);
+    }
+    return Math.max(1, limit);
+  }
+}
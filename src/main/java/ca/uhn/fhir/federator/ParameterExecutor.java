@@ -7,33 +7,52 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
+import org.apache.commons.collections4.ListUtils;
 import org.apache.commons.collections4.keyvalue.DefaultMapEntry;
 import org.apache.commons.lang3.StringUtils;
 import org.hl7.fhir.instance.model.api.IBase;
 import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.hl7.fhir.r4.model.Bundle;
-import org.hl7.fhir.r4.model.Bundle.BundleLinkComponent;
+import org.hl7.fhir.r4.model.Bundle.BundleEntryComponent;
+import org.hl7.fhir.r4.model.Bundle.BundleType;
+import org.hl7.fhir.r4.model.Bundle.HTTPVerb;
 import org.hl7.fhir.r4.model.Identifier;
 import org.hl7.fhir.r4.model.Reference;
 
 import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.federator.FederatorProperties.ServerDesc;
 import ca.uhn.fhir.federator.FederatorProperties.ServerResourceConfig;
-import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
 
 public class ParameterExecutor {
   private static final org.slf4j.Logger ourLog =
       org.slf4j.LoggerFactory.getLogger(ParameterExecutor.class);
+  private static final int MAX_PREALLOCATION = 10000;
+  private static final int MAX_BATCH_ENTRIES = 100;
   private final List<ParsedUrl> urlsPerParameter;
   private final ResourceRegistry rr;
   private final ClientRegistry cr;
   private final FhirContext ctx;
   private final SearchParam2FhirPathRegistry s2f;
   private Map<String, List<IBaseResource>> resourceCachePerParameter;
+  private Deadline deadline = Deadline.none();
+  private List<Identifier> identifierFilter;
+  // the step of the explained plan, null when the search is not explained
+  private Explain.Step step;
+  // the async transport continues on threads outside the scope
+  private FanoutScope scope;
 
   public ParameterExecutor(
       List<ParsedUrl> urlsPerParameter,
@@ -49,42 +68,388 @@ public class ParameterExecutor {
     resourceCachePerParameter = new HashMap<>();
   }
 
-  public List<IBaseResource> execute() {
+  public List<IBaseResource> execute(Deadline deadline) {
+    this.deadline = deadline;
+    this.step = Explain.current();
+    this.scope = FanoutScope.current();
+    FanoutExecutor executor = cr.getExecutor();
     for (int i = (urlsPerParameter.size() - 1); i >= 0; i--) {
 
       ParsedUrl url = urlsPerParameter.get(i);
       String resource = url.getResource();
       resourceCachePerParameter.put(resource, new ArrayList<>());
       List<ParsedUrl> executableUrls = createExecutableUrl(url);
+      // identifiers, of a placeholder or of the filter, are batched per member
+      boolean batched = url.getPlaceholder() != null;
+      if (i == 0 && !batched && identifierFilter != null) {
+        executableUrls = filterOnIdentifiers(executableUrls);
+        batched = true;
+      }
+      // every batch towards every member at once, results are merged as they arrive
+      List<IBaseResource> result = Collections.synchronizedList(new ArrayList<>());
+      // the member of each call
+      Map<Future<Boolean>, String> calls = new LinkedHashMap<>();
+      Map<String, List<ParsedUrl>> searchesPerMember = new LinkedHashMap<>();
+      // asked once per member, a half-open breaker lets only the first question through
+      Map<String, Boolean> available = new HashMap<>();
       for (ParsedUrl executableUrl : executableUrls) {
-        List<ServerResourceConfig> servers = rr.getServer4Resource(resource).getLocations();
-        Stream<ServerResourceConfig> stream = servers.parallelStream();
-        List<IBaseResource> result =
-            stream
-                .flatMap(resourceConfig -> executeUrl(executableUrl, resourceConfig))
-                .collect(Collectors.<IBaseResource>toList());
-        List<IBaseResource> list = resourceCachePerParameter.get(resource);
-        if (list == null || list.isEmpty()) {
-          resourceCachePerParameter.put(resource, result);
-        } else {
-          list.addAll(result);
+        List<ServerResourceConfig> servers =
+            rr.getServer4Resource(executableUrl.getResource()).getLocations();
+        for (ServerResourceConfig resourceConfig : servers) {
+          String server = resourceConfig.getServer();
+          if (!available.computeIfAbsent(server, this::isAvailable)) {
+            continue;
+          }
+          // only identifier batches are sent as POST, the members may need the query as is
+          boolean post = batched && isPostSearch(resourceConfig);
+          for (ParsedUrl batch : split(batched, executableUrl, resourceConfig)) {
+            if (post) {
+              calls.put(
+                  executor.submit(server, () -> result.addAll(executeUrl(batch, server, true))),
+                  server);
+            } else if (batch.isExecutable()) {
+              searchesPerMember.computeIfAbsent(server, k -> new ArrayList<>()).add(batch);
+            }
+          }
         }
       }
+      for (Map.Entry<String, List<ParsedUrl>> searches : searchesPerMember.entrySet()) {
+        for (Future<Boolean> call : submit(searches.getKey(), searches.getValue(), result)) {
+          calls.put(call, searches.getKey());
+        }
+      }
+      for (Map.Entry<Future<Boolean>, String> call : calls.entrySet()) {
+        try {
+          executor.join(call.getKey(), deadline);
+        } catch (DeadlineExceededException e) {
+          ourLog.warn("Deadline expired, continuing without the results of {}", url);
+          warn(deadlineExpired(call.getValue()));
+        } catch (RejectedExecutionException e) {
+          // the rejected request added the warning
+          ourLog.warn("Request rejected, continuing without the results of {}", url);
+        }
+      }
+      resourceCachePerParameter.put(resource, new ArrayList<>(result));
     }
 
     return resourceCachePerParameter.get(urlsPerParameter.get(0).getResource());
   }
 
-  private Stream<? extends IBaseResource> executeUrl(
-      ParsedUrl executableUrl, ServerResourceConfig resourceConfig) {
+  private boolean isAvailable(String server) {
+    boolean retVal = cr.isAvailable(server);
+    if (!retVal) {
+      skipMember(server);
+    }
+    return retVal;
+  }
+
+  static void skipMember(String server) {
+    ourLog.warn("Member {} skipped, circuit breaker open", server);
+    FanoutScope.warn("Member " + server + " skipped: not responding, results may be incomplete");
+  }
+
+  /**
+   * The member searches of a search without placeholder, to be read only when their results are
+   * needed, see {@link LazyBundleProvider}.
+   */
+  public List<LazyBundleProvider.Source> getLazySources() {
+    ParsedUrl url = urlsPerParameter.get(0);
+    List<LazyBundleProvider.Source> retVal = new ArrayList<>();
+    List<ServerResourceConfig> locations = rr.getServer4Resource(url.getResource()).getLocations();
+    for (ServerResourceConfig resourceConfig : locations) {
+      String server = resourceConfig.getServer();
+      if (!cr.isAvailable(server)) {
+        skipMember(server);
+        continue;
+      }
+      ServerDesc member = cr.getMember(server);
+      String completeUrl = server + "/" + url;
+      // read long after the request that started the search, so without its deadline
+      retVal.add(
+          new LazyBundleProvider.Source(
+              completeUrl,
+              () -> new BundlePager(cr, server, completeUrl, getMaxPages(member), Deadline.none()),
+              Optional.ofNullable(member.getMaxResources()).orElse(Integer.MAX_VALUE)));
+    }
+    return retVal;
+  }
+
+  /** Identifiers collected from an earlier step are sent in batches sized for the member. */
+  private List<ParsedUrl> split(
+      boolean batched, ParsedUrl executableUrl, ServerResourceConfig resourceConfig) {
+    if (!batched) {
+      return Collections.singletonList(executableUrl);
+    }
+    return cr.getBatcher(resourceConfig.getServer())
+        .split(
+            executableUrl,
+            rr.getMaxOr4Resource(executableUrl.getResource()),
+            isPostSearch(resourceConfig));
+  }
+
+  /**
+   * Adds the identifier filter to the searches, as the first parameter so that its values are the
+   * ones split in batches.
+   */
+  private List<ParsedUrl> filterOnIdentifiers(List<ParsedUrl> executableUrls) {
+    List<String> identifiers = sanitizeIdentifiers(identifierFilter);
+    List<ParsedUrl> retVal = new ArrayList<>();
+    if (identifiers.isEmpty()) {
+      return retVal;
+    }
+    for (ParsedUrl executableUrl : executableUrls) {
+      List<ParsedUrl> conjuncts = new ArrayList<>();
+      conjuncts.add(
+          new ParsedUrl(
+              executableUrl.getResource(),
+              List.of("identifier"),
+              StringUtils.join(identifiers, ",")));
+      conjuncts.add(
+          new ParsedUrl(
+              executableUrl.getResource(), executableUrl.getKey(), executableUrl.getValue()));
+      conjuncts.addAll(executableUrl.getConjuncts());
+      retVal.add(ParsedUrl.conjunction(conjuncts));
+    }
+    return retVal;
+  }
+
+  private static boolean isPostSearch(ServerResourceConfig resourceConfig) {
+    return Boolean.TRUE.equals(resourceConfig.getPostSearch());
+  }
+
+  /**
+   * Submits the GET searches towards one member. When the member supports it, they are combined in
+   * batch Bundles of at most {@link #MAX_BATCH_ENTRIES} searches.
+   */
+  private List<Future<Boolean>> submit(
+      String server, List<ParsedUrl> searches, List<IBaseResource> result) {
+    FanoutExecutor executor = cr.getExecutor();
+    List<Future<Boolean>> retVal = new ArrayList<>();
+    if (searches.size() > 1 && cr.supportsBatch(server)) {
+      for (List<ParsedUrl> entries : ListUtils.partition(searches, MAX_BATCH_ENTRIES)) {
+        retVal.add(executor.submit(server, () -> result.addAll(executeBatch(entries, server))));
+      }
+    } else if (cr.getAsyncClient(server) != null) {
+      for (ParsedUrl search : searches) {
+        retVal.add(executor.track(executeUrlAsync(search, server).thenApply(result::addAll)));
+      }
+    } else {
+      for (ParsedUrl search : searches) {
+        retVal.add(executor.submit(server, () -> result.addAll(executeUrl(search, server, false))));
+      }
+    }
+    return retVal;
+  }
+
+  /** Like {@link #executeUrl}, without holding a thread while waiting for the member. */
+  private CompletableFuture<List<IBaseResource>> executeUrlAsync(
+      ParsedUrl executableUrl, String server) {
+    String completeUrl = server + "/" + executableUrl;
+    ourLog.info("Client request Url: {}", completeUrl);
+    ServerDesc member = cr.getMember(server);
+    long start = System.currentTimeMillis();
+    return fetchAsync(server, completeUrl, true)
+        .thenCompose(page -> collectAsync(server, completeUrl, member, page, null, 1, start))
+        .handle(
+            (resources, e) -> {
+              if (e == null) {
+                return CompletableFuture.completedFuture(resources);
+              }
+              RuntimeException cause = AsyncMemberClient.unwrap(e);
+              List<ParsedUrl> halves = OrBatcher.halve(executableUrl);
+              if (!(cause instanceof BaseServerResponseException)
+                  || !isTooLong(
+                      (BaseServerResponseException) cause, server, completeUrl, halves, false)) {
+                ourLog.error("Request failed: {} {}", completeUrl, cause.getMessage());
+                explainError(completeUrl, cause.getMessage());
+                return CompletableFuture.completedFuture(Collections.<IBaseResource>emptyList());
+              }
+              cr.getBatcher(server).onRejected(completeUrl.length());
+              return executeUrlAsync(halves.get(0), server)
+                  .thenCombine(executeUrlAsync(halves.get(1), server), ListUtils::union);
+            })
+        .thenCompose(Function.identity());
+  }
+
+  /** One page, an empty one when the request failed unless the first page was rejected. */
+  private CompletableFuture<Bundle> fetchAsync(String server, String url, boolean first) {
+    long start = System.currentTimeMillis();
+    // cancelled with the scope, which frees the slot of the request at the member
+    return cr.getExecutor()
+        .track(cr.getAsyncClient(server).search(url), scope)
+        .handle(
+            (bundle, e) -> {
+              if (e == null) {
+                cr.recordSuccess(server, System.currentTimeMillis() - start);
+                Object bytes = bundle.getUserData(AsyncMemberClient.RESPONSE_BYTES);
+                if (step != null && bytes instanceof Integer) {
+                  step.addBytes((Integer) bytes);
+                }
+                return bundle;
+              }
+              RuntimeException cause = AsyncMemberClient.unwrap(e);
+              cr.recordError(server, cause);
+              if (first && BundlePager.isRejected(cause)) {
+                throw cause;
+              }
+              ourLog.error("Request failed: {} {}", url, cause.getMessage());
+              explainError(url, cause.getMessage());
+              return new Bundle();
+            });
+  }
+
+  /** Adds the resources of a page and continues with the next page, as {@link #collect}. */
+  private CompletableFuture<List<IBaseResource>> collectAsync(
+      String server,
+      String completeUrl,
+      ServerDesc member,
+      Bundle page,
+      List<IBaseResource> out,
+      int pages,
+      long start) {
+    int maxResources = Optional.ofNullable(member.getMaxResources()).orElse(Integer.MAX_VALUE);
+    if (out == null) {
+      int expected = page.hasTotal() ? page.getTotal() : page.getEntry().size();
+      out = new ArrayList<>(Math.min(expected, Math.min(maxResources, MAX_PREALLOCATION)));
+    }
+    for (BundleEntryComponent bec : page.getEntry()) {
+      if (bec.getResource() == null) {
+        continue;
+      }
+      if (out.size() >= maxResources) {
+        ourLog.warn("Stopped after {} resources: {}", maxResources, completeUrl);
+        warn(cutOff(server, maxResources + " resources"));
+        explain(completeUrl, pages, out, start);
+        return CompletableFuture.completedFuture(out);
+      }
+      bec.getResource().setUserData(RecordMerger.MEMBER, server);
+      out.add(bec.getResource());
+    }
+    String nextUrl = BundlePager.getNextUrl(page);
+    if (nextUrl == null) {
+      ourLog.info("Client request Url: {} #{} in {} pages", completeUrl, out.size(), pages);
+      explain(completeUrl, pages, out, start);
+      return CompletableFuture.completedFuture(out);
+    }
+    if (pages >= getMaxPages(member)) {
+      ourLog.warn("Stopped after {} pages: {}", pages, nextUrl);
+      warn(cutOff(server, pages + " pages"));
+      explain(completeUrl, pages, out, start);
+      return CompletableFuture.completedFuture(out);
+    }
+    if (deadline.isExpired()) {
+      ourLog.warn("Deadline expired after {} pages: {}", pages, nextUrl);
+      warn(deadlineExpired(server));
+      explain(completeUrl, pages, out, start);
+      return CompletableFuture.completedFuture(out);
+    }
+    List<IBaseResource> collected = out;
+    return fetchAsync(server, nextUrl, false)
+        .thenCompose(
+            next ->
+                collectAsync(server, completeUrl, member, next, collected, pages + 1, start));
+  }
+
+  /**
+   * A rejected request is retried in halves when its URL is too long: a 414, or a 400 for a URL
+   * longer than the member is configured to accept. Any other 400 is a bad search.
+   */
+  private boolean isTooLong(
+      BaseServerResponseException e,
+      String server,
+      String completeUrl,
+      List<ParsedUrl> halves,
+      boolean post) {
+    if (halves.size() <= 1) {
+      return false;
+    }
+    if (e.getStatusCode() == 414) {
+      return true;
+    }
+    return e.getStatusCode() == 400
+        && !post
+        && completeUrl.length() > cr.getBatcher(server).getConfiguredMaxUrlLength();
+  }
+
+  /**
+   * Sends the searches in one batch Bundle. The entries of the batch-response are in the order of
+   * the request; searches without a searchset in the response are retried on their own. The batch
+   * is hedged and bounded by the deadline like a single search.
+   */
+  private List<IBaseResource> executeBatch(List<ParsedUrl> searches, String server) {
+    Bundle request = new Bundle();
+    request.setType(BundleType.BATCH);
+    for (ParsedUrl search : searches) {
+      request.addEntry().getRequest().setMethod(HTTPVerb.GET).setUrl(search.toString());
+    }
+    ourLog.info("Client request batch: {} with {} searches", server, searches.size());
+    List<BundleEntryComponent> entries = Collections.emptyList();
+    long start = System.currentTimeMillis();
+    FanoutExecutor executor = cr.getExecutor();
+    long hedgeAfter = cr.getHedgeDelay(server);
+    Callable<Bundle> send = () -> cr.getClient(server).transaction().withBundle(request).execute();
+    try {
+      Bundle response =
+          hedgeAfter < 0
+              ? executor.join(executor.submitRequest(send), deadline)
+              : executor.hedge(send, hedgeAfter, deadline);
+      entries = response.getEntry();
+      cr.recordSuccess(server, System.currentTimeMillis() - start);
+    } catch (DeadlineExceededException e) {
+      ourLog.warn("Deadline expired, continuing without the results of batch: {}", server);
+      warn(deadlineExpired(server));
+      return Collections.emptyList();
+    } catch (RejectedExecutionException e) {
+      ourLog.warn("Batch request rejected, continuing without its results: {}", server);
+      return Collections.emptyList();
+    } catch (RuntimeException e) {
+      cr.recordError(server, e);
+      ourLog.warn("Batch request failed, sending the searches one by one: {}", e.getMessage());
+      explainError(server, e.getMessage());
+    }
+    List<IBaseResource> retVal = new ArrayList<>();
+    for (int i = 0; i < searches.size(); i++) {
+      ParsedUrl search = searches.get(i);
+      IBaseResource page = i < entries.size() ? entries.get(i).getResource() : null;
+      if (page instanceof Bundle) {
+        ServerDesc member = cr.getMember(server);
+        try (BundlePager pager =
+            new BundlePager(cr, server, (Bundle) page, getMaxPages(member), deadline)) {
+          retVal.addAll(collect(pager, server + "/" + search, member));
+        }
+      } else {
+        retVal.addAll(executeUrl(search, server, false));
+      }
+    }
+    return retVal;
+  }
+
+  private List<IBaseResource> executeUrl(ParsedUrl executableUrl, String server, boolean post) {
     if (!executableUrl.isExecutable()) {
-      return Stream.empty();
+      return Collections.emptyList();
     } else {
-      IGenericClient client = cr.getClient(resourceConfig.getServer());
       String completeUrl;
-      completeUrl = resourceConfig.getServer() + "/" + executableUrl;
-      ourLog.info("Client request Url: {}", completeUrl);
-      return getResultsForURL(client, completeUrl).stream();
+      completeUrl = server + "/" + executableUrl;
+      ourLog.info("Client request Url: {}{}", post ? "POST " : "", completeUrl);
+      try {
+        return getResultsForURL(completeUrl, cr.getMember(server), post ? executableUrl : null);
+      } catch (BaseServerResponseException e) {
+        List<ParsedUrl> halves = OrBatcher.halve(executableUrl);
+        if (!isTooLong(e, server, completeUrl, halves, post)) {
+          ourLog.error("Request failed: {} {}", completeUrl, e.getMessage());
+          explainError(completeUrl, e.getMessage());
+          return Collections.emptyList();
+        }
+        ourLog.warn("Request rejected with {}, retrying in two halves", e.getStatusCode());
+        if (!post) {
+          cr.getBatcher(server).onRejected(completeUrl.length());
+        }
+        List<IBaseResource> retVal = new ArrayList<>();
+        for (ParsedUrl half : halves) {
+          retVal.addAll(executeUrl(half, server, post));
+        }
+        return retVal;
+      }
     }
   }
 
@@ -128,22 +493,10 @@ public class ParameterExecutor {
                     .collect(Collectors.toList());
           }
           List<String> sanitizedIdentifiers = sanitizeIdentifiers(identifiers);
-          int batch = rr.getMaxOr4Resource(resource);
-          int counter = 0;
-          List<String> idBatch = new ArrayList<>();
-          for (String identifier : sanitizedIdentifiers) {
-            if (counter < batch) {
-              idBatch.add(identifier);
-            } else {
-              counter = 0;
-              retVal.add(new ParsedUrl(resource, url.getKey(), StringUtils.join(idBatch, ",")));
-              idBatch.clear();
-              idBatch.add(identifier);
-            }
-            counter++;
-          }
-          if (!idBatch.isEmpty()) {
-            retVal.add(new ParsedUrl(resource, url.getKey(), StringUtils.join(idBatch, ",")));
+          // split in batches per member at execution, see OrBatcher
+          if (!sanitizedIdentifiers.isEmpty()) {
+            retVal.add(
+                new ParsedUrl(resource, url.getKey(), StringUtils.join(sanitizedIdentifiers, ",")));
           }
         }
       } else {
@@ -236,34 +589,92 @@ public class ParameterExecutor {
     }
   }
 
-  private static List<IBaseResource> getResultsForURL(IGenericClient client, String completeUrl) {
-    Bundle bundle = new Bundle();
-    try {
-      bundle = client.search().byUrl(completeUrl).returnBundle(Bundle.class).execute();
-    } catch (RuntimeException e) {
-      ourLog.error("Request failed: {} {}", completeUrl, e.getMessage());
-    }
-    List<BundleLinkComponent> next =
-        bundle.getLink().stream()
-            .filter(link -> link.getRelation().equals("next"))
-            .collect(Collectors.toList());
-
-    List<IBaseResource> own =
-        bundle.getEntry().stream()
-            .filter(bec -> bec.getResource() != null)
-            .map(bec -> ((IBaseResource) bec.getResource()))
-            .collect(Collectors.toList());
-    ourLog.info("Client request Url: {} #{}", completeUrl, own.size());
-
-    List<IBaseResource> out = new ArrayList<>(own);
-    if (!next.isEmpty()) {
-      List<IBaseResource> other = getResultsForURL(client, next.get(0).getUrl());
-      out.addAll(other);
+  /**
+   * Collects all resources of a member search. With {@code postSearch} set the search is sent as
+   * POST, {@code completeUrl} is then only used for logging.
+   */
+  private List<IBaseResource> getResultsForURL(
+      String completeUrl, ServerDesc member, ParsedUrl postSearch) {
+    int maxPages = getMaxPages(member);
+    try (BundlePager pager =
+        postSearch == null
+            ? new BundlePager(cr, member.getUrl(), completeUrl, maxPages, deadline)
+            : new BundlePager(cr, member.getUrl(), postSearch, maxPages, deadline)) {
+      return collect(pager, completeUrl, member);
     }
+  }
 
+  private static int getMaxPages(ServerDesc member) {
+    return Optional.ofNullable(member.getMaxPages()).orElse(Integer.MAX_VALUE);
+  }
+
+  private List<IBaseResource> collect(BundlePager pager, String completeUrl, ServerDesc member) {
+    int maxResources = Optional.ofNullable(member.getMaxResources()).orElse(Integer.MAX_VALUE);
+    List<IBaseResource> out = null;
+    while (pager.hasNext()) {
+      Bundle bundle = pager.next();
+      if (out == null) {
+        // the first page tells how large the sink has to be
+        int expected = bundle.hasTotal() ? bundle.getTotal() : bundle.getEntry().size();
+        out = new ArrayList<>(Math.min(expected, Math.min(maxResources, MAX_PREALLOCATION)));
+      }
+      for (BundleEntryComponent bec : bundle.getEntry()) {
+        if (bec.getResource() == null) {
+          continue;
+        }
+        if (out.size() >= maxResources) {
+          ourLog.warn("Stopped after {} resources: {}", maxResources, completeUrl);
+          warn(cutOff(member.getUrl(), maxResources + " resources"));
+          explain(completeUrl, pager.getPages(), out, pager.getStartMillis());
+          return out;
+        }
+        bec.getResource().setUserData(RecordMerger.MEMBER, member.getUrl());
+        out.add(bec.getResource());
+      }
+    }
+    ourLog.info(
+        "Client request Url: {} #{} in {} pages", completeUrl, out.size(), pager.getPages());
+    explain(completeUrl, pager.getPages(), out, pager.getStartMillis());
     return out;
   }
 
+  /** The warning for results of a member or member search that a limit of the member cut off. */
+  static String cutOff(String source, String limit) {
+    return "Results of " + source + " cut off after " + limit + ", results may be incomplete";
+  }
+
+  /** The warning for a member that did not answer before the deadline. */
+  static String deadlineExpired(String server) {
+    return "Deadline expired before " + server + " answered, results may be incomplete";
+  }
+
+  private void warn(String warning) {
+    if (scope != null) {
+      scope.addWarning(warning);
+    }
+  }
+
+  /** Adds a finished member search to the explained plan, if any. */
+  private void explain(String completeUrl, int pages, List<IBaseResource> out, long start) {
+    if (step != null) {
+      step.addSearch(completeUrl, pages, out.size(), System.currentTimeMillis() - start);
+    }
+  }
+
+  private void explainError(String url, String message) {
+    if (step != null) {
+      step.addError(url, message);
+    }
+  }
+
+  /**
+   * Only asks the members for resources with one of these identifiers, the other ones are known
+   * not to survive the intersection they are part of.
+   */
+  public void setIdentifierFilter(List<Identifier> identifierFilter) {
+    this.identifierFilter = identifierFilter;
+  }
+
   public void setCachedResources(Map<String, List<IBaseResource>> resourceCachePerParameter) {
     this.resourceCachePerParameter = resourceCachePerParameter;
   }
@@ -11,6 +11,8 @@ public class ParsedUrl {
   String value;
   DefaultMapEntry<String, List<String>> placeholder;
   private boolean iterate;
+  // further key/value pairs of the same search, see conjunction
+  private List<ParsedUrl> conjuncts = List.of();
 
   public boolean isIterate() {
     return iterate;
@@ -64,6 +66,28 @@ public class ParsedUrl {
     }
   }
 
+  /**
+   * One search for all the given plain key/value searches on the same resource, to be evaluated by
+   * the members themselves.
+   */
+  public static ParsedUrl conjunction(List<ParsedUrl> urls) {
+    ParsedUrl first = urls.get(0);
+    ParsedUrl retVal = new ParsedUrl(first.getResource(), first.getKey(), first.getValue());
+    retVal.conjuncts = List.copyOf(urls.subList(1, urls.size()));
+    return retVal;
+  }
+
+  /** The same search with another value, e.g. a part of an OR list. */
+  public ParsedUrl withValue(String value) {
+    ParsedUrl retVal = new ParsedUrl(iterate, resource, key, value, null, null);
+    retVal.conjuncts = conjuncts;
+    return retVal;
+  }
+
+  public List<ParsedUrl> getConjuncts() {
+    return conjuncts;
+  }
+
   public String getResource() {
     return resource;
   }
@@ -116,6 +140,9 @@ public class ParsedUrl {
         retVal += ("{" + placeholder.getKey() + "." + placeholderValue + "}");
       }
     }
+    for (ParsedUrl conjunct : conjuncts) {
+      retVal += "&" + StringUtils.join(conjunct.key, ".") + "=" + conjunct.value;
+    }
     return retVal;
   }
 
@@ -142,6 +169,7 @@ public class ParsedUrl {
     result = prime * result + ((placeholder == null) ? 0 : placeholder.hashCode());
     result = prime * result + ((resource == null) ? 0 : resource.hashCode());
     result = prime * result + ((value == null) ? 0 : value.hashCode());
+    result = prime * result + conjuncts.hashCode();
     return result;
   }
 
@@ -161,6 +189,7 @@ public class ParsedUrl {
     if (resource == null) {
       if (other.resource != null) return false;
     } else if (!resource.equals(other.resource)) return false;
+    if (!conjuncts.equals(other.conjuncts)) return false;
     if (value == null) {
       return other.value == null;
     } else return value.equals(other.value);
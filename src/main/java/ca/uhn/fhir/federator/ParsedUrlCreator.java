@@ -7,6 +7,7 @@ import java.util.Optional;
 
 import org.antlr.v4.runtime.ParserRuleContext;
 
+import ca.uhn.fhir.federator.FhirUrlParser.AContext;
 import ca.uhn.fhir.federator.FhirUrlParser.FContext;
 import ca.uhn.fhir.federator.FhirUrlParser.JContext;
 import ca.uhn.fhir.federator.FhirUrlParser.KContext;
@@ -19,10 +20,28 @@ import ca.uhn.fhir.federator.FhirUrlParser.VContext;
 public class ParsedUrlCreator {
   private final FContext resourceCtx;
   private final PContext httpParam;
+  private final FhirUrlAnalyser analyser;
 
   public ParsedUrlCreator(ParserRuleContext resource, ParserRuleContext httpParam) {
+    this(resource, httpParam, analyse(resource));
+  }
+
+  /** With the analyser that visited the whole tree, so no subtree has to be visited again. */
+  public ParsedUrlCreator(
+      ParserRuleContext resource, ParserRuleContext httpParam, FhirUrlAnalyser analyser) {
     this.resourceCtx = (FContext) resource;
     this.httpParam = (PContext) httpParam;
+    this.analyser = analyser;
+  }
+
+  private static FhirUrlAnalyser analyse(ParserRuleContext resource) {
+    ParserRuleContext root = resource;
+    while (root.getParent() != null) {
+      root = root.getParent();
+    }
+    FhirUrlAnalyser retVal = new FhirUrlAnalyser();
+    root.accept(retVal);
+    return retVal;
   }
 
   public Optional<ParsedUrl> createUrl() {
@@ -30,169 +49,129 @@ public class ParsedUrlCreator {
     String resource = resourceCtx.TOKEN() == null ? null : resourceCtx.TOKEN().getText();
     ParsedUrl url = null;
 
-    String clazz = parent.getClass().getSimpleName();
-
-    switch (clazz) {
-      case "VContext":
-        if (httpParam.k().q() != null && "_include".equals(httpParam.k().q().SPECIAL().getText())) {
-          String target = ((VContext) parent).e().getText();
-          String altResource = null; // check at runtime, but maybe there is a hint
-          if (((VContext) parent).b() != null) {
-            altResource = ((VContext) parent).b().getText();
-          }
-          List<String> key = List.of("identifier");
-          boolean iterate =
-              httpParam.k().u() != null && "iterate".equals(httpParam.k().u().TOKEN().getText());
-
-          url =
-              new ParsedUrl(
-                  iterate, altResource, key, resource, Arrays.asList(target, "identifier"));
-        } else if (((VContext) parent).e() != null) {
-          ParserRuleContext ref = parent;
-          while (!(ref instanceof SContext)) {
-            ref = ref.getParent();
-          }
-          url =
-              new ParsedUrl(
-                  resource,
-                  Arrays.asList(((VContext) parent).e().x().TOKEN().getText(), "identifier"),
-                  ((SContext) ref).a().f().TOKEN().getText(),
-                  List.of("identifier"));
+    if (parent instanceof VContext) {
+      if (httpParam.k().q() != null && "_include".equals(httpParam.k().q().SPECIAL().getText())) {
+        String target = ((VContext) parent).e().getText();
+        String altResource = null; // check at runtime, but maybe there is a hint
+        if (((VContext) parent).b() != null) {
+          altResource = ((VContext) parent).b().getText();
+        }
+        List<String> key = List.of("identifier");
+        boolean iterate =
+            httpParam.k().u() != null && "iterate".equals(httpParam.k().u().TOKEN().getText());
+
+        url =
+            new ParsedUrl(
+                iterate, altResource, key, resource, Arrays.asList(target, "identifier"));
+      } else if (((VContext) parent).e() != null) {
+        ParserRuleContext ref = parent;
+        while (!(ref instanceof SContext)) {
+          ref = ref.getParent();
+        }
+        url =
+            new ParsedUrl(
+                resource,
+                Arrays.asList(((VContext) parent).e().x().TOKEN().getText(), "identifier"),
+                ((SContext) ref).a().f().TOKEN().getText(),
+                List.of("identifier"));
+      } else {
+        url = new ParsedUrl(resource, ((VContext) parent).i().getText());
+      }
+    } else if (parent instanceof JContext) {
+      List<FContext> a = analyser.getResourcesIn(parent);
+      if (a.size() > 1) {
+        ParserRuleContext parent2 = a.get(1).getParent();
+        List<String> target = null;
+        if (parent2 instanceof JContext) {
+          target = Arrays.asList(((JContext) parent2).l().TOKEN().getText(), "identifier");
+        } else if (parent2 instanceof EContext) {
+          target = List.of("identifier");
+        }
+        List<String> source;
+        if (((JContext) parent).m().e() != null) {
+          source = Arrays.asList(((JContext) parent).m().e().x().TOKEN().getText(), "identifier");
         } else {
-          url = new ParsedUrl(resource, ((VContext) parent).i().getText());
+          source = List.of("identifier");
         }
-        break;
-      case "JContext":
-        FhirUrlAnalyser a = new FhirUrlAnalyser();
-        parent.accept(a);
-        if (a.getResources().get(0).size() > 1) {
-          ParserRuleContext parent2 = a.getResources().get(0).get(1).getParent();
-          String clazz2 = parent2.getClass().getSimpleName();
+        url = new ParsedUrl(resource, source, a.get(1).TOKEN().getText(), target);
+      } else {
+        ParserRuleContext temp = resourceCtx;
+        while (!(temp instanceof PContext)) {
+          temp = temp.getParent();
+        }
+        PContext httpParam = (PContext) temp;
+        List<String> key =
+            ((JContext) resourceCtx.getParent()).m() == null
+                ? null
+                : Collections.singletonList(((JContext) resourceCtx.getParent()).m().getText());
+        String value = httpParam.d() == null ? null : httpParam.d().getText();
+        url = new ParsedUrl(resource, key, value);
+      }
+    } else if (parent instanceof EContext) {
+      List<FContext> b = analyser.getResourcesIn(parent);
+      if (b.size() > 1) {
+        url =
+            new ParsedUrl(
+                resource, List.of("identifier"), b.get(1).TOKEN().getText(), List.of("identifier"));
+      } else {
+        ParserRuleContext temp = resourceCtx;
+        while (!(temp instanceof PContext)) {
+          temp = temp.getParent();
+        }
+        PContext httpParam = (PContext) temp;
+        List<String> key =
+            ((EContext) resourceCtx.getParent()).e() == null
+                ? null
+                : Collections.singletonList(((EContext) resourceCtx.getParent()).e().getText());
+        String value = httpParam.d() == null ? null : httpParam.d().getText();
+        url = new ParsedUrl(resource, key, value);
+      }
+    } else if (parent instanceof AContext) {
+      if (httpParam != null) {
+        List<FContext> c = analyser.getResourcesIn(httpParam);
+        if (!c.isEmpty()) {
+          ParserRuleContext parent2 = c.get(0).getParent();
           List<String> target = null;
-          switch (clazz2) {
-            case "JContext":
-              target = Arrays.asList(((JContext) parent2).l().TOKEN().getText(), "identifier");
-              break;
-            case "EContext":
+          List<String> source = null;
+          if (parent2 instanceof VContext) {
+            if (httpParam.k().e() != null) {
+              source = Arrays.asList(httpParam.k().e().x().TOKEN().getText(), "identifier");
               target = List.of("identifier");
-              break;
-          }
-          List<String> source;
-          if (((JContext) parent).m().e() != null) {
-            source = Arrays.asList(((JContext) parent).m().e().x().TOKEN().getText(), "identifier");
-          } else {
+            } else {
+              String specialParameter = httpParam.k().q().SPECIAL().getText();
+              if (specialParameter.equals("_revinclude")) {
+              } else
+              // TODO
+              if (specialParameter.equals("_include")) {
+              } else {
+                source = List.of(specialParameter);
+              }
+            }
+          } else if (parent2 instanceof JContext) {
+            target = Arrays.asList(((JContext) parent2).l().TOKEN().getText(), "identifier");
             source = List.of("identifier");
-          }
-          url =
-              new ParsedUrl(
-                  resource,
-                  source,
-                  ((FContext) a.getResources().get(0).get(1)).TOKEN().getText(),
-                  target);
-
-        } else {
-          ParserRuleContext temp = resourceCtx;
-          while (!(temp instanceof PContext)) {
-            temp = temp.getParent();
-          }
-          PContext httpParam = (PContext) temp;
-          List<String> key =
-              ((JContext) resourceCtx.getParent()).m() == null
-                  ? null
-                  : Collections.singletonList(((JContext) resourceCtx.getParent()).m().getText());
-          String value = httpParam.d() == null ? null : httpParam.d().getText();
-          url = new ParsedUrl(resource, key, value);
-        }
-        break;
-
-      case "EContext":
-        FhirUrlAnalyser b = new FhirUrlAnalyser();
-        parent.accept(b);
-        if (b.getResources().get(0).size() > 1) {
-          url =
-              new ParsedUrl(
-                  resource,
-                  List.of("identifier"),
-                  ((FContext) b.getResources().get(0).get(1)).TOKEN().getText(),
-                  List.of("identifier"));
-
-        } else {
-          ParserRuleContext temp = resourceCtx;
-          while (!(temp instanceof PContext)) {
-            temp = temp.getParent();
-          }
-          PContext httpParam = (PContext) temp;
-          List<String> key =
-              ((EContext) resourceCtx.getParent()).e() == null
-                  ? null
-                  : Collections.singletonList(((EContext) resourceCtx.getParent()).e().getText());
-          String value = httpParam.d() == null ? null : httpParam.d().getText();
-          url = new ParsedUrl(resource, key, value);
-        }
-        break;
-      case "AContext":
-        if (httpParam != null) {
-          FhirUrlAnalyser c = new FhirUrlAnalyser();
-          httpParam.accept(c);
-          if (c.getResources().size() != 0 && c.getResources().get(0).size() > 0) {
-            ParserRuleContext parent2 = c.getResources().get(0).get(0).getParent();
-            String clazz2 = parent2.getClass().getSimpleName();
-            List<String> target = null;
-            List<String> source = null;
-            switch (clazz2) {
-              case "VContext":
-                if (httpParam.k().e() != null) {
-                  source = Arrays.asList(httpParam.k().e().x().TOKEN().getText(), "identifier");
-                  target = List.of("identifier");
-                } else {
-                  String specialParameter = httpParam.k().q().SPECIAL().getText();
-                  if (specialParameter.equals("_revinclude")) {
-                  } else
-                  // TODO
-                  if (specialParameter.equals("_include")) {
-                  } else {
-                    source = List.of(specialParameter);
-                  }
-                }
-
-                break;
-              case "JContext":
-                target = Arrays.asList(((JContext) parent2).l().TOKEN().getText(), "identifier");
-                source = List.of("identifier");
-                break;
-              case "EContext":
-                target = List.of("identifier"); // ((RContext)parent2).t().IDENTIFIER().getText();
-                if (parent2.getParent() instanceof KContext) {
-                  source =
-                      Arrays.asList(
-                          ((KContext) parent2.getParent()).e().x().TOKEN().getText(), "identifier");
-                } else {
-                  source =
-                      Arrays.asList(
-                          ((MContext) parent2.getParent()).e().x().TOKEN().getText(), "identifier");
-                }
-                break;
+          } else if (parent2 instanceof EContext) {
+            target = List.of("identifier"); // ((RContext)parent2).t().IDENTIFIER().getText();
+            if (parent2.getParent() instanceof KContext) {
+              source =
+                  Arrays.asList(
+                      ((KContext) parent2.getParent()).e().x().TOKEN().getText(), "identifier");
+            } else {
+              source =
+                  Arrays.asList(
+                      ((MContext) parent2.getParent()).e().x().TOKEN().getText(), "identifier");
             }
-            url =
-                new ParsedUrl(
-                    resource,
-                    source,
-                    ((FContext) c.getResources().get(0).get(0)).TOKEN() == null
-                        ? null
-                        : ((FContext) c.getResources().get(0).get(0)).TOKEN().getText(),
-                    target);
-          } else {
-            List<String> source = Collections.singletonList(httpParam.k().getText());
-            String value = httpParam.d() == null ? null : httpParam.d().getText();
-            url = new ParsedUrl(resource, source, value);
           }
+          String placeholderResource = c.get(0).TOKEN() == null ? null : c.get(0).TOKEN().getText();
+          url = new ParsedUrl(resource, source, placeholderResource, target);
         } else {
-          url = new ParsedUrl(parent.getText());
+          List<String> source = Collections.singletonList(httpParam.k().getText());
+          String value = httpParam.d() == null ? null : httpParam.d().getText();
+          url = new ParsedUrl(resource, source, value);
         }
-
-        break;
-
-      default:
+      } else {
+        url = new ParsedUrl(parent.getText());
+      }
     }
 
     return Optional.ofNullable(url);
@@ -0,0 +1,197 @@
+package ca.uhn.fhir.federator;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+import org.antlr.v4.runtime.BaseErrorListener;
+import org.antlr.v4.runtime.CharStreams;
+import org.antlr.v4.runtime.RecognitionException;
+import org.antlr.v4.runtime.Recognizer;
+import org.antlr.v4.runtime.Token;
+
+/**
+ * Bounded cache of the {@link QueryPlan}s of earlier queries, keyed by query shape: the query with
+ * the values of its parameters replaced by their token types. The parser only looks at token
+ * types, so queries of the same shape give the same plan, apart from the values.
+ *
+ * <p>A value is a slot when the plan only copies it; other values, e.g. references, are part of the
+ * cached plan and have to be the same for a hit.
+ */
+public class PlanCache {
+  private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(PlanCache.class);
+
+  public static final int DEFAULT_SIZE = 256;
+  private static final String SLOT = "\0";
+
+  /** A lexed query, with its shape and the values of its parameters. */
+  public static class Shape {
+    private final List<Token> tokens;
+    private final String key;
+    private final List<String> values = new ArrayList<>();
+    // token index of the first token of every value, to its parameter
+    private final Map<Integer, Integer> positions = new HashMap<>();
+    private boolean cacheable = true;
+
+    private Shape(String query, boolean strict) {
+      FhirUrlLexer lexer = new FhirUrlLexer(CharStreams.fromString(query));
+      lexer.addErrorListener(
+          new BaseErrorListener() {
+            @Override
+            public void syntaxError(
+                Recognizer<?, ?> recognizer,
+                Object offendingSymbol,
+                int line,
+                int charPositionInLine,
+                String msg,
+                RecognitionException e) {
+              cacheable = false;
+            }
+          });
+      tokens = Collections.unmodifiableList(lexer.getAllTokens());
+      StringBuilder shape = new StringBuilder(strict ? "strict:" : "lenient:");
+      StringBuilder value = null;
+      for (int i = 0; i < tokens.size(); i++) {
+        Token token = tokens.get(i);
+        int type = token.getType();
+        if (type == FhirUrlLexer.QM || type == FhirUrlLexer.AMP) {
+          endValue(value);
+          value = null;
+          shape.append(token.getText());
+        } else if (value != null) {
+          value.append(token.getText());
+          shape.append('<').append(FhirUrlLexer.VOCABULARY.getSymbolicName(type)).append('>');
+        } else if (type == FhirUrlLexer.EQ) {
+          value = new StringBuilder();
+          positions.put(i + 1, values.size());
+          shape.append(token.getText());
+        } else {
+          shape.append(token.getText());
+        }
+      }
+      endValue(value);
+      key = shape.toString();
+    }
+
+    private void endValue(StringBuilder value) {
+      if (value != null) {
+        values.add(value.toString());
+      }
+    }
+
+    public List<Token> getTokens() {
+      return tokens;
+    }
+
+    /** The parameter of which the value starts at the token, -1 when there is none. */
+    public int getPosition(Token start) {
+      return start == null ? -1 : positions.getOrDefault(start.getTokenIndex(), -1);
+    }
+  }
+
+  /** A plan with slots, and the values that are not slots. */
+  private static class Template {
+    private final QueryPlan plan;
+    private final Map<Integer, String> literals;
+
+    private Template(QueryPlan plan, Map<Integer, String> literals) {
+      this.plan = plan;
+      this.literals = literals;
+    }
+  }
+
+  private final Map<String, Template> templates;
+
+  public PlanCache(int maxSize) {
+    this.templates =
+        Collections.synchronizedMap(
+            new LinkedHashMap<String, Template>(16, 0.75f, true) {
+              @Override
+              protected boolean removeEldestEntry(Map.Entry<String, Template> eldest) {
+                return size() > maxSize;
+              }
+            });
+  }
+
+  public static Shape shape(String query, boolean strict) {
+    return new Shape(query, strict);
+  }
+
+  /** The plan for the query, from a cached plan of the same shape. */
+  public Optional<QueryPlan> get(Shape shape) {
+    Template template = shape.cacheable ? templates.get(shape.key) : null;
+    if (template == null) {
+      return Optional.empty();
+    }
+    for (Map.Entry<Integer, String> literal : template.literals.entrySet()) {
+      if (!literal.getValue().equals(shape.values.get(literal.getKey()))) {
+        return Optional.empty();
+      }
+    }
+    ourLog.debug("Plan cache hit: {}", shape.key);
+    QueryPlan retVal = new QueryPlan();
+    bind(template.plan.getAndParameters(), retVal.getAndParameters(), shape.values);
+    bind(template.plan.getIncludeParameters(), retVal.getIncludeParameters(), shape.values);
+    return Optional.of(retVal);
+  }
+
+  public void put(Shape shape, QueryPlan plan) {
+    if (!shape.cacheable) {
+      return;
+    }
+    Map<Integer, String> literals = new HashMap<>();
+    for (int position = 0; position < shape.values.size(); position++) {
+      literals.put(position, shape.values.get(position));
+    }
+    QueryPlan template = new QueryPlan();
+    slot(plan.getAndParameters(), template.getAndParameters(), shape.values, literals);
+    slot(plan.getIncludeParameters(), template.getIncludeParameters(), shape.values, literals);
+    templates.put(shape.key, new Template(template, literals));
+  }
+
+  /**
+   * Replaces the values by slots in the parameters that only copy their value: at least one of
+   * their URLs has the value of the parameter, and none has another value.
+   */
+  private static void slot(
+      List<QueryPlan.Parameter> parameters,
+      List<QueryPlan.Parameter> out,
+      List<String> values,
+      Map<Integer, String> literals) {
+    for (QueryPlan.Parameter parameter : parameters) {
+      int position = parameter.getPosition();
+      String value = position < 0 ? null : values.get(position);
+      boolean copied =
+          value != null
+              && parameter.getUrls().stream().anyMatch(url -> value.equals(url.getValue()))
+              && parameter.getUrls().stream()
+                  .allMatch(url -> url.getValue() == null || value.equals(url.getValue()));
+      if (!copied) {
+        out.add(parameter);
+        continue;
+      }
+      literals.remove(position);
+      List<ParsedUrl> urls = new ArrayList<>();
+      for (ParsedUrl url : parameter.getUrls()) {
+        urls.add(url.getValue() == null ? url : url.withValue(SLOT + position));
+      }
+      out.add(new QueryPlan.Parameter(position, urls));
+    }
+  }
+
+  private static void bind(
+      List<QueryPlan.Parameter> parameters, List<QueryPlan.Parameter> out, List<String> values) {
+    for (QueryPlan.Parameter parameter : parameters) {
+      List<ParsedUrl> urls = new ArrayList<>();
+      for (ParsedUrl url : parameter.getUrls()) {
+        boolean slot = url.getValue() != null && url.getValue().startsWith(SLOT);
+        urls.add(slot ? url.withValue(values.get(parameter.getPosition())) : url);
+      }
+      out.add(new QueryPlan.Parameter(parameter.getPosition(), urls));
+    }
+  }
+}
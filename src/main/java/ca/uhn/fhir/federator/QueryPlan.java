@@ -0,0 +1,43 @@
+package ca.uhn.fhir.federator;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The search parameters of a query as {@link ParsedUrl}s, before they become a tree of nodes. Every
+ * parameter remembers the position of its value in the query, so that a {@link PlanCache} can bind
+ * the values of another query of the same shape.
+ */
+public class QueryPlan {
+
+  /** The parsed URLs of one parameter of the query. */
+  public static class Parameter {
+    private final int position;
+    private final List<ParsedUrl> urls;
+
+    /** {@code position} is the index of the parameter in the query, -1 when it has none. */
+    public Parameter(int position, List<ParsedUrl> urls) {
+      this.position = position;
+      this.urls = urls;
+    }
+
+    public int getPosition() {
+      return position;
+    }
+
+    public List<ParsedUrl> getUrls() {
+      return urls;
+    }
+  }
+
+  private final List<Parameter> andParameters = new ArrayList<>();
+  private final List<Parameter> includeParameters = new ArrayList<>();
+
+  public List<Parameter> getAndParameters() {
+    return andParameters;
+  }
+
+  public List<Parameter> getIncludeParameters() {
+    return includeParameters;
+  }
+}
@@ -0,0 +1,311 @@
+package ca.uhn.fhir.federator;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+
+import org.apache.commons.lang3.StringUtils;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Identifier;
+
+import ca.uhn.fhir.federator.FederatorProperties.Planner;
+import ca.uhn.fhir.federator.FederatorProperties.ServerResourceConfig;
+import ca.uhn.fhir.federator.ast.Node;
+import ca.uhn.fhir.federator.ast.ParameterNode;
+
+/**
+ * Orders the parameters of an AND search so that the most selective one runs first. The running
+ * intersection then stays small, and becomes empty as early as possible.
+ *
+ * <p>The estimated number of results of a parameter is, in order of preference: one per value for
+ * {@code _id} and {@code identifier}, the number of results the same parameter gave in earlier
+ * searches, or, when switched on, the sum of the totals of a {@code _summary=count} probe on every
+ * member. Parameters without an estimate keep their place in the URL, after the estimated ones.
+ */
+public class QueryPlanner {
+  private static final org.slf4j.Logger ourLog =
+      org.slf4j.LoggerFactory.getLogger(QueryPlanner.class);
+
+  public static final long UNKNOWN = Long.MAX_VALUE;
+  public static final int DEFAULT_PROBE_TIMEOUT = 2000;
+  public static final String AND_MODE_CONCURRENT = "concurrent";
+  public static final int DEFAULT_SEMI_JOIN = 1000;
+  // weight of the last search in the recorded statistics
+  private static final double SMOOTHING = 0.3;
+
+  private final ClientRegistry cr;
+  private final ResourceRegistry rr;
+  private final boolean enabled;
+  private final boolean probe;
+  private final int probeTimeout;
+  private final boolean concurrent;
+  private final boolean pushDown;
+  private final int semiJoin;
+  private final PlanCache planCache;
+  private final boolean lazy;
+  private final Map<String, Double> statistics = new ConcurrentHashMap<>();
+
+  public QueryPlanner(ClientRegistry cr, ResourceRegistry rr, Planner config) {
+    Optional<Planner> planner = Optional.ofNullable(config);
+    this.cr = cr;
+    this.rr = rr;
+    this.enabled = planner.map(Planner::getEnabled).orElse(true);
+    this.probe = planner.map(Planner::getProbe).orElse(false);
+    this.probeTimeout = planner.map(Planner::getProbeTimeout).orElse(DEFAULT_PROBE_TIMEOUT);
+    this.concurrent =
+        AND_MODE_CONCURRENT.equalsIgnoreCase(planner.map(Planner::getAndMode).orElse(null));
+    this.pushDown = planner.map(Planner::getPushDown).orElse(false);
+    this.semiJoin = planner.map(Planner::getSemiJoin).orElse(DEFAULT_SEMI_JOIN);
+    int planCacheSize = planner.map(Planner::getPlanCache).orElse(PlanCache.DEFAULT_SIZE);
+    this.planCache = planCacheSize > 0 ? new PlanCache(planCacheSize) : null;
+    this.lazy = planner.map(Planner::getLazy).orElse(true);
+  }
+
+  /**
+   * The parameters of an AND as one search that every member evaluates itself, when they are all
+   * plain key/value searches on the same resource. Empty when the federator has to combine them,
+   * and always when push-down is not switched on: a member then only finds the resources for which
+   * it has all the data the parameters ask for.
+   */
+  public Optional<ParsedUrl> pushDown(List<List<ParsedUrl>> perParameter) {
+    if (!pushDown || perParameter.size() < 2) {
+      return Optional.empty();
+    }
+    List<ParsedUrl> urls = new ArrayList<>();
+    for (List<ParsedUrl> parameter : perParameter) {
+      if (parameter.size() != 1 || !isPlain(parameter.get(0))) {
+        return Optional.empty();
+      }
+      urls.add(parameter.get(0));
+    }
+    if (urls.stream().map(ParsedUrl::getResource).distinct().count() != 1) {
+      return Optional.empty();
+    }
+    ParsedUrl retVal = ParsedUrl.conjunction(urls);
+    ourLog.info("Pushed down to the members: {}", retVal);
+    return Optional.of(retVal);
+  }
+
+  /**
+   * The node restricted to the resources that can still be part of the intersection: it then only
+   * asks the members for resources with an identifier of the {@code running} result. The node
+   * itself when that is not possible or not worth it.
+   */
+  public Node semiJoin(Node node, List<IBaseResource> running) {
+    if (running.isEmpty() || running.size() > semiJoin || !(node instanceof ParameterNode)) {
+      return node;
+    }
+    List<ParsedUrl> urls = ((ParameterNode) node).getParsedUrls();
+    String resource = running.get(0).getClass().getSimpleName();
+    if (urls.size() != 1
+        || !isPlain(urls.get(0))
+        || !resource.equals(urls.get(0).getResource())
+        || running.stream().anyMatch(x -> !resource.equals(x.getClass().getSimpleName()))) {
+      return node;
+    }
+    Optional<List<Identifier>> identifiers = new IdentifierJoin(rr).getJoinIdentifiers(running);
+    if (identifiers.isEmpty() || identifiers.get().size() > semiJoin) {
+      return node;
+    }
+    ourLog.info("Semi-join of {} on {} identifiers", urls.get(0), identifiers.get().size());
+    return ((ParameterNode) node).withIdentifierFilter(identifiers.get());
+  }
+
+  private static boolean isPlain(ParsedUrl url) {
+    return url.getPlaceholder() == null
+        && !url.isIterate()
+        && url.getKey() != null
+        && url.getKey().size() == 1
+        && url.getValue() != null
+        && url.isExecutable();
+  }
+
+  /** Whether the results of a single search are only fetched when they are read. */
+  public boolean isLazy() {
+    return lazy;
+  }
+
+  /** The cache of parsed queries, null when switched off. */
+  public PlanCache getPlanCache() {
+    return planCache;
+  }
+
+  /**
+   * Whether the parameters of an AND run at the same time, instead of one after the other in the
+   * planned order.
+   */
+  public boolean isConcurrent() {
+    return concurrent;
+  }
+
+  public FanoutExecutor getExecutor() {
+    return cr.getExecutor();
+  }
+
+  /** The nodes in the order in which they should be executed. */
+  public List<Node> order(List<Node> nodes, Deadline deadline) {
+    if (!enabled || nodes.size() < 2) {
+      return nodes;
+    }
+    Map<Node, Long> estimates = estimate(nodes, deadline);
+    List<Node> retVal = new ArrayList<>(nodes);
+    // stable, so unknown parameters keep the order of the URL
+    retVal.sort(Comparator.comparing(estimates::get));
+    ourLog.info(
+        "Execution order: {}",
+        retVal.stream()
+            .map(node -> getSignature(node) + " ~" + format(estimates.get(node)))
+            .collect(Collectors.joining(", ")));
+    return retVal;
+  }
+
+  /** Records the number of results of an executed parameter, for later estimates. */
+  public void record(Node node, int count) {
+    String signature = getSignature(node);
+    if (signature != null) {
+      statistics.merge(
+          signature, (double) count, (old, last) -> old * (1 - SMOOTHING) + last * SMOOTHING);
+    }
+  }
+
+  private Map<Node, Long> estimate(List<Node> nodes, Deadline deadline) {
+    Map<Node, Long> retVal = new IdentityHashMap<>();
+    Map<Node, List<Future<Integer>>> probes = new IdentityHashMap<>();
+    for (Node node : nodes) {
+      long estimate = countValues(node);
+      if (estimate == UNKNOWN) {
+        estimate = getRecordedEstimate(node);
+      }
+      // only parameters without statistics are probed
+      String probeUrl = getProbeUrl(node);
+      if (estimate == UNKNOWN && probe && probeUrl != null) {
+        probes.put(node, submitProbes(probeUrl));
+      }
+      retVal.put(node, estimate);
+    }
+    Deadline probeDeadline =
+        deadline.isBounded()
+            ? Deadline.after(Math.min(probeTimeout, deadline.remainingMillis()))
+            : Deadline.after(probeTimeout);
+    for (Map.Entry<Node, List<Future<Integer>>> entry : probes.entrySet()) {
+      Long total = sum(entry.getValue(), probeDeadline);
+      if (total != null) {
+        retVal.put(entry.getKey(), total);
+      }
+    }
+    return retVal;
+  }
+
+  /** Searches on {@code _id} or {@code identifier} give at most one resource per value. */
+  private static long countValues(Node node) {
+    if (!(node instanceof ParameterNode)) {
+      return UNKNOWN;
+    }
+    List<ParsedUrl> urls = ((ParameterNode) node).getParsedUrls();
+    if (urls.size() != 1 || urls.get(0).getPlaceholder() != null || urls.get(0).getKey() == null) {
+      return UNKNOWN;
+    }
+    ParsedUrl url = urls.get(0);
+    String key = url.getKey().get(url.getKey().size() - 1);
+    if (("_id".equals(key) || "identifier".equals(key)) && url.getValue() != null) {
+      return StringUtils.countMatches(url.getValue(), ',') + 1L;
+    }
+    return UNKNOWN;
+  }
+
+  private long getRecordedEstimate(Node node) {
+    String signature = getSignature(node);
+    Double recorded = signature == null ? null : statistics.get(signature);
+    return recorded == null ? UNKNOWN : Math.round(recorded);
+  }
+
+  /** A count can only be asked for a parameter that needs no results of another search. */
+  private static String getProbeUrl(Node node) {
+    if (!(node instanceof ParameterNode)) {
+      return null;
+    }
+    List<ParsedUrl> urls = ((ParameterNode) node).getParsedUrls();
+    if (urls.size() != 1 || urls.get(0).getPlaceholder() != null) {
+      return null;
+    }
+    ParsedUrl url = urls.get(0);
+    if (!url.isExecutable() || url.getKey() == null || url.getKey().isEmpty()) {
+      return null;
+    }
+    return url + "&_summary=count";
+  }
+
+  private List<Future<Integer>> submitProbes(String probeUrl) {
+    FanoutExecutor executor = cr.getExecutor();
+    String resource = StringUtils.substringBefore(probeUrl, "?");
+    List<Future<Integer>> retVal = new ArrayList<>();
+    for (ServerResourceConfig location : rr.getServer4Resource(resource).getLocations()) {
+      String server = location.getServer();
+      if (!cr.isAvailable(server)) {
+        continue;
+      }
+      retVal.add(
+          executor.submit(
+              server,
+              () -> {
+                long start = System.currentTimeMillis();
+                try {
+                  Bundle count =
+                      cr.getClient(server)
+                          .search()
+                          .byUrl(server + "/" + probeUrl)
+                          .returnBundle(Bundle.class)
+                          .execute();
+                  cr.recordSuccess(server, System.currentTimeMillis() - start);
+                  return count.hasTotal() ? count.getTotal() : null;
+                } catch (RuntimeException e) {
+                  // a probe cancelled at its deadline says nothing about the member
+                  if (!Thread.currentThread().isInterrupted()) {
+                    cr.recordError(server, e);
+                  }
+                  throw e;
+                }
+              }));
+    }
+    return retVal;
+  }
+
+  /** The sum of the probes, null when one of them gave no answer. */
+  private Long sum(List<Future<Integer>> probes, Deadline deadline) {
+    long retVal = 0;
+    for (Future<Integer> future : probes) {
+      try {
+        Integer total = cr.getExecutor().join(future, deadline);
+        if (total == null) {
+          return null;
+        }
+        retVal += total;
+      } catch (RuntimeException e) {
+        ourLog.debug("Count probe failed: {}", e.getMessage());
+        return null;
+      }
+    }
+    return retVal;
+  }
+
+  private static String getSignature(Node node) {
+    if (!(node instanceof ParameterNode)) {
+      return null;
+    }
+    return ((ParameterNode) node)
+        .getParsedUrls().stream()
+            .map(url -> url.getResource() + "?" + url.getKeyAsString())
+            .collect(Collectors.joining("/"));
+  }
+
+  private static String format(long estimate) {
+    return estimate == UNKNOWN ? "?" : Long.toString(estimate);
+  }
+}
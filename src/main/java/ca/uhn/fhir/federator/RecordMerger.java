@@ -0,0 +1,70 @@
+package ca.uhn.fhir.federator;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+/**
+ * Returns the copies of one record, found on several members, as one resource, for the resource
+ * types configured with {@code merge}. Copies are the resources that match on their identifiers, as
+ * in an AND; the first copy is kept and tagged with every member that returned a copy.
+ *
+ * <p>The kept copy only has its own identifiers, so the results are merged once, at the root of
+ * the search, and not before an AND: a copy matching only through another copy would no longer
+ * match.
+ */
+public class RecordMerger {
+  /** User data of a resource: the base of the member it came from. */
+  public static final String MEMBER = RecordMerger.class.getName() + ".member";
+  /** System of the tags with the members a resource came from. */
+  public static final String MEMBER_TAG_SYSTEM = "urn:fhirfederator:member";
+
+  private final ResourceRegistry rr;
+
+  public RecordMerger(ResourceRegistry rr) {
+    this.rr = rr;
+  }
+
+  /** The resources with one entry per record, in the order of their first copy. */
+  public List<IBaseResource> merge(List<IBaseResource> resources) {
+    List<IBaseResource> merged =
+        resources.stream()
+            .filter(x -> x != null && rr.isMerged(x.getClass().getSimpleName()))
+            .collect(Collectors.toList());
+    if (merged.isEmpty()) {
+      return resources;
+    }
+    Map<IBaseResource, List<IBaseResource>> groups = new IdentityHashMap<>();
+    for (List<IBaseResource> group : new IdentifierJoin(rr).group(merged)) {
+      group.forEach(resource -> groups.put(resource, group));
+    }
+    List<IBaseResource> retVal = new ArrayList<>();
+    Set<List<IBaseResource>> done = Collections.newSetFromMap(new IdentityHashMap<>());
+    for (IBaseResource resource : resources) {
+      List<IBaseResource> group = groups.get(resource);
+      if (group == null) {
+        retVal.add(resource);
+      } else if (done.add(group)) {
+        retVal.add(tag(group));
+      }
+    }
+    return retVal;
+  }
+
+  private static IBaseResource tag(List<IBaseResource> group) {
+    IBaseResource retVal = group.get(0);
+    for (IBaseResource copy : group) {
+      Object member = copy.getUserData(MEMBER);
+      if (member != null && retVal.getMeta().getTag(MEMBER_TAG_SYSTEM, member.toString()) == null) {
+        retVal.getMeta().addTag().setSystem(MEMBER_TAG_SYSTEM).setCode(member.toString());
+      }
+    }
+    return retVal;
+  }
+}
@@ -32,6 +32,10 @@ public class ResourceCollector {
   }
 
   public List<IBase> execute() {
+    return FhirPathEngines.with(cr, ctx, rr, this::execute);
+  }
+
+  private List<IBase> execute(IFhirPath fhirPath) {
     final List<IBase> toProcess = new ArrayList<>(this.input);
     final List<IBase> nextRound = new ArrayList<>();
 
@@ -41,8 +45,6 @@ public class ResourceCollector {
               inputResource -> {
                 String resourceName = inputResource.getClass().getSimpleName();
                 List<IBase> outputs;
-                // IFhirPath fhirPath = ctx.newFhirPath();
-                IFhirPath fhirPath = new FhirPathR4WithResolver(ctx, cr, rr);
                 String fp = s2f.getFhirPath(resourceName, searchParam);
                 outputs = fhirPath.evaluate(inputResource, fp, IBase.class);
                 nextRound.addAll(outputs);
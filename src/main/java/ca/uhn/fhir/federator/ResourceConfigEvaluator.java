@@ -8,7 +8,6 @@ import org.hl7.fhir.r4.model.BooleanType;
 
 import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.federator.FederatorProperties.ServerResourceConfig;
-import ca.uhn.fhir.fhirpath.IFhirPath;
 import ca.uhn.fhir.rest.annotation.Create;
 import ca.uhn.fhir.rest.annotation.Delete;
 import ca.uhn.fhir.rest.annotation.Read;
@@ -67,8 +66,9 @@ public class ResourceConfigEvaluator {
       return false;
     } else {
       try {
-        IFhirPath fp = new FhirPathR4WithResolver(ctx, cr, rr);
-        Optional<BooleanType> ev = fp.evaluateFirst(resource, toEval, BooleanType.class);
+        Optional<BooleanType> ev =
+            FhirPathEngines.with(
+                cr, ctx, rr, fp -> fp.evaluateFirst(resource, toEval, BooleanType.class));
         if (ev.isPresent() && ev.get().isBooleanPrimitive()) {
           BooleanType t = ev.get();
           return t.booleanValue();
@@ -2,7 +2,6 @@ package ca.uhn.fhir.federator;
 
 import java.util.LinkedHashMap;
 import java.util.Map;
-import java.util.Optional;
 
 import ca.uhn.fhir.federator.FederatorProperties.ResourceConfig;
 
@@ -28,11 +27,13 @@ public class ResourceRegistry {
     map.put(resource, config);
   }
 
-  public int getMaxOr4Resource(String resource) {
-    ResourceConfig config = getServer4Resource(resource);
-
-    Optional<Integer> min = Optional.ofNullable(config.getMaxOr());
+  /** The maximum number of OR values per request, null when not configured for the resource. */
+  public Integer getMaxOr4Resource(String resource) {
+    return getServer4Resource(resource).getMaxOr();
+  }
 
-    return min.orElse(10);
+  /** Whether the copies of a resource from several members are returned as one entry. */
+  public boolean isMerged(String resource) {
+    return Boolean.TRUE.equals(getServer4Resource(resource).getMerge());
   }
 }
@@ -0,0 +1,119 @@
+package ca.uhn.fhir.federator;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Recognizes the queries that most requests are, {@code Resource?param=value[,value]&...} without
+ * chaining, modifiers, {@code _has} or includes, and creates their {@link QueryPlan} without the
+ * lexer, parser and tree walks. It only accepts what the grammar tokenizes in the same way, any
+ * other query is left to {@link FhirUrlParsing}; both give the same plan, see
+ * TestSimpleQueryParser.
+ */
+final class SimpleQueryParser {
+
+  private SimpleQueryParser() {}
+
+  /** The plan of the query, empty when the query is not simple. */
+  static Optional<QueryPlan> parse(String query) {
+    int qm = query.indexOf('?');
+    String resource = qm < 0 ? query : query.substring(0, qm);
+    if (!isResource(resource)) {
+      return Optional.empty();
+    }
+    QueryPlan retVal = new QueryPlan();
+    if (qm < 0) {
+      retVal.getAndParameters().add(new QueryPlan.Parameter(-1, List.of(new ParsedUrl(resource))));
+      return Optional.of(retVal);
+    }
+    int position = 0;
+    int start = qm + 1;
+    while (start <= query.length()) {
+      int end = query.indexOf('&', start);
+      if (end < 0) {
+        end = query.length();
+      }
+      int eq = query.indexOf('=', start);
+      if (eq < 0 || eq > end || !isKey(query, start, eq) || !isValue(query, eq + 1, end)) {
+        return Optional.empty();
+      }
+      ParsedUrl url =
+          new ParsedUrl(
+              resource, List.of(query.substring(start, eq)), query.substring(eq + 1, end));
+      retVal.getAndParameters().add(new QueryPlan.Parameter(position++, listOf(url)));
+      start = end + 1;
+    }
+    return Optional.of(retVal);
+  }
+
+  private static List<ParsedUrl> listOf(ParsedUrl url) {
+    List<ParsedUrl> retVal = new ArrayList<>(1);
+    retVal.add(url);
+    return retVal;
+  }
+
+  /** A TOKEN other than one of the keywords. */
+  private static boolean isResource(String resource) {
+    return isLetters(resource, 0, resource.length()) && !isProfile(resource, 0, resource.length());
+  }
+
+  /** A TOKEN or a SPECIAL that is neither {@code _has}, nor an include nor {@code _history}. */
+  private static boolean isKey(String query, int start, int end) {
+    if (start < end && query.charAt(start) == '_') {
+      String key = query.substring(start, end);
+      return isLetters(query, start + 1, end)
+          && !"_has".equals(key)
+          && !"_history".equals(key)
+          && !"_include".equals(key)
+          && !"_revinclude".equals(key);
+    }
+    return isLetters(query, start, end) && !isProfile(query, start, end);
+  }
+
+  /** Values that each are one TOKEN, IDENTIFIER or DECIMAL without a fraction. */
+  private static boolean isValue(String query, int start, int end) {
+    int from = start;
+    for (int i = start; i <= end; i++) {
+      if (i == end || query.charAt(i) == ',') {
+        // a value starting with _ is a SPECIAL
+        if (i == from || query.charAt(from) == '_' || isProfile(query, from, i)) {
+          return false;
+        }
+        from = i + 1;
+      } else if (!isIdentifierChar(query.charAt(i))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /** The PROFILE keyword. */
+  private static boolean isProfile(String text, int start, int end) {
+    return end - start == 7 && text.startsWith("Profile", start);
+  }
+
+  /** Not empty, letters and hyphens only, as a TOKEN. */
+  private static boolean isLetters(String text, int start, int end) {
+    if (start >= end) {
+      return false;
+    }
+    for (int i = start; i < end; i++) {
+      char c = text.charAt(i);
+      if (!(c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c == '-')) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /** The characters of an IDENTIFIER. */
+  private static boolean isIdentifierChar(char c) {
+    return c >= 'a' && c <= 'z'
+        || c >= 'A' && c <= 'Z'
+        || c >= '0' && c <= '9'
+        || c == '-'
+        || c == '_'
+        || c == '%';
+  }
+}
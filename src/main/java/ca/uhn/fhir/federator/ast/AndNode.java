@@ -1,11 +1,17 @@
 package ca.uhn.fhir.federator.ast;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
-import java.util.stream.Collectors;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.hl7.fhir.instance.model.api.IBaseResource;
 
-import ca.uhn.fhir.federator.IBaseResourcePredicate;
+import ca.uhn.fhir.federator.Deadline;
+import ca.uhn.fhir.federator.Explain;
+import ca.uhn.fhir.federator.IdentifierJoin;
+import ca.uhn.fhir.federator.QueryPlanner;
 import ca.uhn.fhir.federator.ResourceRegistry;
 import ca.uhn.fhir.rest.api.server.IBundleProvider;
 import ca.uhn.fhir.rest.server.SimpleBundleProvider;
@@ -13,43 +19,77 @@ import ca.uhn.fhir.rest.server.SimpleBundleProvider;
 public class AndNode implements Node {
   private final List<Node> nodes;
   private final ResourceRegistry rr;
+  private final QueryPlanner planner;
 
   public AndNode(ResourceRegistry rr, List<Node> nodes) {
+    this(rr, null, nodes);
+  }
+
+  /** The planner decides the order of the nodes, without one they run in the order given. */
+  public AndNode(ResourceRegistry rr, QueryPlanner planner, List<Node> nodes) {
     this.nodes = nodes;
     this.rr = rr;
+    this.planner = planner;
   }
 
   @Override
-  public IBundleProvider execute() {
-    Node andNode =
-        nodes.stream()
-            .reduce(
-                (a, b) -> {
-                  List<IBaseResource> aList = a.execute().getAllResources();
-                  if (aList.isEmpty()) {
-                    return NoopNode.EMPTY;
-                  }
-                  List<IBaseResource> bList = b.execute().getAllResources();
-                  if (bList.isEmpty()) {
-                    return NoopNode.EMPTY;
-                  }
-                  return new NoopNode(intersection(rr, aList, bList));
-                })
-            .orElse(NoopNode.EMPTY);
-    return new SimpleBundleProvider(andNode.execute().getAllResources());
+  public IBundleProvider execute(Deadline deadline) {
+    return Explain.step("and", null, () -> executeNodes(deadline), x -> x.getAllResources().size());
+  }
+
+  private IBundleProvider executeNodes(Deadline deadline) {
+    if (planner != null && planner.isConcurrent() && nodes.size() > 1) {
+      return executeConcurrently(deadline);
+    }
+    List<Node> ordered = planner == null ? nodes : planner.order(nodes, deadline);
+    List<IBaseResource> running = null;
+    for (Node node : ordered) {
+      // after the most selective node, only candidates for the intersection are fetched
+      Node toExecute = running == null || planner == null ? node : planner.semiJoin(node, running);
+      List<IBaseResource> resources = toExecute.execute(deadline).getAllResources();
+      if (toExecute == node && planner != null) {
+        planner.record(node, resources.size());
+      }
+      running = running == null ? resources : intersection(rr, running, resources);
+      if (running.isEmpty()) {
+        // the remaining parameters cannot add anything
+        break;
+      }
+    }
+    return new SimpleBundleProvider(running == null ? Collections.emptyList() : running);
+  }
+
+  /**
+   * Executes all nodes at once and intersects their results as they arrive. The nodes still
+   * running are cancelled as soon as the intersection is empty.
+   */
+  private IBundleProvider executeConcurrently(Deadline deadline) {
+    List<Callable<List<IBaseResource>>> tasks = new ArrayList<>();
+    for (Node node : nodes) {
+      tasks.add(
+          () -> {
+            List<IBaseResource> resources = node.execute(deadline).getAllResources();
+            planner.record(node, resources.size());
+            return resources;
+          });
+    }
+    AtomicReference<List<IBaseResource>> running = new AtomicReference<>();
+    planner
+        .getExecutor()
+        .forEachCompleted(
+            tasks,
+            resources -> {
+              List<IBaseResource> current = running.get();
+              running.set(current == null ? resources : intersection(rr, current, resources));
+              return !running.get().isEmpty();
+            });
+    List<IBaseResource> result = running.get();
+    return new SimpleBundleProvider(result == null ? Collections.emptyList() : result);
   }
 
   private List<IBaseResource> intersection(
       ResourceRegistry rr, List<IBaseResource> list, List<IBaseResource> list2) {
-    return list.stream()
-        .distinct()
-        .filter(
-            x ->
-                list2.stream()
-                    .map(y -> new IBaseResourcePredicate(rr).test(x, y))
-                    .reduce((a, b) -> a || b)
-                    .orElse(false))
-        .collect(Collectors.toList());
+    return new IdentifierJoin(rr).intersection(list, list2);
   }
 
   @Override
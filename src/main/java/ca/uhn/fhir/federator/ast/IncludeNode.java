@@ -1,37 +1,124 @@
 package ca.uhn.fhir.federator.ast;
 
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
-import java.util.stream.Collectors;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
 
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.r4.model.Identifier;
+
+import ca.uhn.fhir.federator.Deadline;
+import ca.uhn.fhir.federator.Explain;
+import ca.uhn.fhir.federator.FanoutScope;
+import ca.uhn.fhir.federator.FederatorProperties.Include;
+import ca.uhn.fhir.federator.GetIdentifierHelper;
 import ca.uhn.fhir.rest.api.server.IBundleProvider;
 import ca.uhn.fhir.rest.server.SimpleBundleProvider;
 
+/**
+ * Adds the resources of an {@code _include} to the results of the reference node. An {@code
+ * _include:iterate} continues from the resources found in the previous round only; resources that
+ * were already found are not followed again, so cyclic references end.
+ */
 public class IncludeNode implements Node {
+  public static final int DEFAULT_MAX_ITERATE_DEPTH = 10;
+  public static final int DEFAULT_MAX_RESOURCES = 10000;
+
   private final ParameterNode parameterNode;
   private final Node referenceNode;
+  private final int maxIterateDepth;
+  private final int maxResources;
+  private final Map<Class<?>, GetIdentifierHelper> helpers = new HashMap<>();
 
   public IncludeNode(Node referenceNode, ParameterNode parameterNode) {
+    this(referenceNode, parameterNode, null);
+  }
+
+  public IncludeNode(Node referenceNode, ParameterNode parameterNode, Include config) {
+    Optional<Include> include = Optional.ofNullable(config);
     this.referenceNode = referenceNode;
     this.parameterNode = parameterNode;
+    this.maxIterateDepth =
+        include.map(Include::getMaxIterateDepth).orElse(DEFAULT_MAX_ITERATE_DEPTH);
+    this.maxResources = include.map(Include::getMaxResources).orElse(DEFAULT_MAX_RESOURCES);
   }
 
   @Override
-  public IBundleProvider execute() {
-    IBundleProvider refBundle = referenceNode.execute();
-    if (refBundle.getAllResources().isEmpty()) {
+  public IBundleProvider execute(Deadline deadline) {
+    return Explain.step(
+        "include",
+        parameterNode.getParsedUrls().toString(),
+        () -> executeInclude(deadline),
+        x -> x.getAllResources().size());
+  }
+
+  private IBundleProvider executeInclude(Deadline deadline) {
+    List<IBaseResource> retVal = new ArrayList<>(referenceNode.execute(deadline).getAllResources());
+    if (retVal.isEmpty()) {
       return new SimpleBundleProvider();
     }
-    List<IBundleProvider> providers = new ArrayList<>();
-    providers.add(refBundle);
-    IBundleProvider include = parameterNode.executeWithReference(refBundle);
-    providers.add(include);
-    while (parameterNode.isIterate() && !include.isEmpty()) {
-      include = parameterNode.executeWithReference(include);
-      providers.add(include);
+    Set<Object> visited = new HashSet<>();
+    retVal.forEach(resource -> visited.add(key(resource)));
+    List<IBaseResource> frontier = retVal;
+    int round = 0;
+    do {
+      // every target type of the frontier is fetched at once, see ParameterExecutor
+      List<IBaseResource> included =
+          parameterNode
+              .executeWithReference(new SimpleBundleProvider(frontier), deadline)
+              .getAllResources();
+      frontier = new ArrayList<>();
+      for (IBaseResource resource : included) {
+        if (!visited.add(key(resource))) {
+          continue;
+        }
+        if (retVal.size() >= maxResources) {
+          FanoutScope.warn("Include stopped after " + maxResources + " resources");
+          return new SimpleBundleProvider(retVal);
+        }
+        frontier.add(resource);
+        retVal.add(resource);
+      }
+      round++;
+    } while (parameterNode.isIterate()
+        && !frontier.isEmpty()
+        && !deadline.isExpired()
+        && !isTooDeep(round));
+    return new SimpleBundleProvider(retVal);
+  }
+
+  private boolean isTooDeep(int round) {
+    // the first round is the include itself
+    if (round > maxIterateDepth) {
+      FanoutScope.warn("Include iterate stopped after " + maxIterateDepth + " rounds");
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * The same resource has the same key: its id when that includes the base of the member, the
+   * type and first identifier otherwise, as in {@link ca.uhn.fhir.federator.IdentifierJoin}.
+   */
+  private Object key(IBaseResource resource) {
+    IIdType id = resource.getIdElement();
+    if (id != null && id.hasBaseUrl() && id.hasIdPart()) {
+      return id.toVersionless().getValue();
+    }
+    List<Identifier> identifiers =
+        helpers
+            .computeIfAbsent(resource.getClass(), GetIdentifierHelper::new)
+            .getIdentifier(resource);
+    if (identifiers.isEmpty() || identifiers.get(0).getValue() == null) {
+      return resource;
     }
-    return new SimpleBundleProvider(
-        providers.stream().flatMap(x -> x.getAllResources().stream()).collect(Collectors.toList()));
+    Identifier first = identifiers.get(0);
+    return resource.getClass().getSimpleName() + "|" + first.getSystem() + "|" + first.getValue();
   }
 
   @Override
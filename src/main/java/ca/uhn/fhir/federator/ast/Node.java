@@ -1,7 +1,9 @@
 package ca.uhn.fhir.federator.ast;
 
+import ca.uhn.fhir.federator.Deadline;
 import ca.uhn.fhir.rest.api.server.IBundleProvider;
 
 public interface Node {
-  IBundleProvider execute();
+  /** Executes the node, member requests still running when the deadline expires are dropped. */
+  IBundleProvider execute(Deadline deadline);
 }
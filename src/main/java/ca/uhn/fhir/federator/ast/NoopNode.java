@@ -5,6 +5,7 @@ import java.util.List;
 
 import org.hl7.fhir.instance.model.api.IBaseResource;
 
+import ca.uhn.fhir.federator.Deadline;
 import ca.uhn.fhir.rest.api.server.IBundleProvider;
 import ca.uhn.fhir.rest.server.SimpleBundleProvider;
 
@@ -16,7 +17,7 @@ public class NoopNode implements Node {
     private static final IBundleProvider EMPTY = new SimpleBundleProvider(EMPTY_LIST);
 
     @Override
-    public IBundleProvider execute() {
+    public IBundleProvider execute(Deadline deadline) {
 
       return EMPTY;
     }
@@ -36,7 +37,7 @@ public class NoopNode implements Node {
   }
 
   @Override
-  public IBundleProvider execute() {
+  public IBundleProvider execute(Deadline deadline) {
     return new SimpleBundleProvider(resources);
   }
 
@@ -6,9 +6,13 @@ import java.util.Map;
 import java.util.stream.Collectors;
 
 import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Identifier;
 
 import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.federator.ClientRegistry;
+import ca.uhn.fhir.federator.Deadline;
+import ca.uhn.fhir.federator.Explain;
+import ca.uhn.fhir.federator.LazyBundleProvider;
 import ca.uhn.fhir.federator.ParameterExecutor;
 import ca.uhn.fhir.federator.ParsedUrl;
 import ca.uhn.fhir.federator.ResourceRegistry;
@@ -24,6 +28,7 @@ public class ParameterNode implements Node {
   private final FhirContext ctx;
   private final SearchParam2FhirPathRegistry s2f;
   private final boolean iterate;
+  private List<Identifier> identifierFilter;
 
   public ParameterNode(
       List<ParsedUrl> parsedUrls,
@@ -40,12 +45,21 @@ public class ParameterNode implements Node {
   }
 
   @Override
-  public IBundleProvider execute() {
-    return executeWithReference(null);
+  public IBundleProvider execute(Deadline deadline) {
+    return executeWithReference(null, deadline);
   }
 
-  public IBundleProvider executeWithReference(IBundleProvider reference) {
+  public IBundleProvider executeWithReference(IBundleProvider reference, Deadline deadline) {
+    return Explain.step(
+        identifierFilter == null ? "parameter" : "semi-join",
+        parsedUrls.toString(),
+        () -> executeParameter(reference, deadline),
+        x -> x.getAllResources().size());
+  }
+
+  private IBundleProvider executeParameter(IBundleProvider reference, Deadline deadline) {
     ParameterExecutor parameterExecutor = new ParameterExecutor(parsedUrls, rr, cr, ctx, s2f);
+    parameterExecutor.setIdentifierFilter(identifierFilter);
     if (reference != null) {
       List<IBaseResource> resources = reference.getAllResources();
       Map<String, List<IBaseResource>> resourceCachePerParameter =
@@ -55,10 +69,41 @@ public class ParameterNode implements Node {
                       x -> x.getClass().getSimpleName(), HashMap::new, Collectors.toList()));
       parameterExecutor.setCachedResources(resourceCachePerParameter);
     }
-    List<IBaseResource> parameterResources = parameterExecutor.execute();
+    List<IBaseResource> parameterResources = parameterExecutor.execute(deadline);
     return new SimpleBundleProvider(parameterResources);
   }
 
+  /**
+   * Whether the results can be read lazily from the member searches: a single search, that needs no
+   * results of another one.
+   */
+  public boolean isLazy() {
+    if (parsedUrls.size() != 1 || iterate || identifierFilter != null) {
+      return false;
+    }
+    ParsedUrl url = parsedUrls.get(0);
+    // merging needs the results of every member
+    return url.getPlaceholder() == null
+        && url.getResource() != null
+        && url.isExecutable()
+        && !rr.isMerged(url.getResource());
+  }
+
+  public List<LazyBundleProvider.Source> getLazySources() {
+    return new ParameterExecutor(parsedUrls, rr, cr, ctx, s2f).getLazySources();
+  }
+
+  /** The same parameter, only for resources with one of the identifiers. */
+  public ParameterNode withIdentifierFilter(List<Identifier> identifiers) {
+    ParameterNode retVal = new ParameterNode(parsedUrls, rr, cr, ctx, s2f);
+    retVal.identifierFilter = identifiers;
+    return retVal;
+  }
+
+  public List<ParsedUrl> getParsedUrls() {
+    return parsedUrls;
+  }
+
   public boolean isIterate() {
     return iterate;
   }
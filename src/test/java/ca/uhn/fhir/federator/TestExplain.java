@@ -0,0 +1,66 @@
+package ca.uhn.fhir.federator;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import org.apache.http.HttpVersion;
+import org.apache.http.entity.InputStreamEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.hl7.fhir.r4.model.IntegerType;
+import org.hl7.fhir.r4.model.Parameters.ParametersParameterComponent;
+import org.junit.jupiter.api.Test;
+
+import ca.uhn.fhir.rest.client.apache.ApacheHttpResponse;
+
+public class TestExplain {
+
+  @Test
+  public void TestBytesWithoutContentLength() {
+    Explain.Step step = new Explain.Step("search", null);
+    // chunked, the length is unknown until the body is read
+    BasicHttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+    response.setEntity(new InputStreamEntity(new ByteArrayInputStream(new byte[1234])));
+    Explain.run(step, () -> read(new ApacheHttpResponse(response, null)));
+    assertEquals(Integer.valueOf(1234), getBytes(step));
+  }
+
+  @Test
+  public void TestNoBytesWhenNotRead() {
+    Explain.Step step = new Explain.Step("search", null);
+    BasicHttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+    response.setHeader("Content-Length", "1234");
+    response.setEntity(new InputStreamEntity(new ByteArrayInputStream(new byte[1234])));
+    Explain.run(
+        step,
+        () -> {
+          new Explain.BytesInterceptor().interceptResponse(new ApacheHttpResponse(response, null));
+          return null;
+        });
+    // left out of the plan
+    assertNull(getBytes(step));
+  }
+
+  private static Void read(ApacheHttpResponse response) {
+    new Explain.BytesInterceptor().interceptResponse(response);
+    try (InputStream in = response.readEntity()) {
+      in.read();
+      in.readAllBytes();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return null;
+  }
+
+  private static Integer getBytes(Explain.Step step) {
+    for (ParametersParameterComponent part : step.toParameters().getParameterFirstRep().getPart()) {
+      if ("bytes".equals(part.getName())) {
+        return ((IntegerType) part.getValue()).getValue();
+      }
+    }
+    return null;
+  }
+}
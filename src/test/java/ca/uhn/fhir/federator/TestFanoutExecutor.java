@@ -0,0 +1,147 @@
+package ca.uhn.fhir.federator;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.jupiter.api.Test;
+
+public class TestFanoutExecutor {
+
+  @Test
+  public void TestCancelledBranchCancelsItsRequests() {
+    FanoutExecutor executor = new FanoutExecutor(null);
+    try {
+      CountDownLatch submitted = new CountDownLatch(1);
+      AtomicReference<Future<Boolean>> request = new AtomicReference<>();
+      Callable<Boolean> slow =
+          () -> {
+            // a member request the branch does not wait for, as a prefetched page
+            request.set(executor.submit("member", () -> sleep(60000)));
+            submitted.countDown();
+            return sleep(60000);
+          };
+      Callable<Boolean> empty =
+          () -> {
+            submitted.await();
+            return false;
+          };
+      // the empty branch ends the AND
+      executor.forEachCompleted(List.of(slow, empty), Boolean::booleanValue);
+      assertTrue(request.get().isCancelled());
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void TestJoinAfterDeadline() {
+    FanoutExecutor executor = new FanoutExecutor(null);
+    try {
+      AtomicBoolean ran = new AtomicBoolean();
+      // not started yet, join must not run it on the calling thread
+      FutureTask<Boolean> future = new FutureTask<>(() -> ran.getAndSet(true));
+      assertThrows(
+          DeadlineExceededException.class, () -> executor.join(future, Deadline.after(0)));
+      assertTrue(future.isCancelled());
+      assertFalse(ran.get());
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void TestJoinTimesOut() {
+    FanoutExecutor executor = new FanoutExecutor(null);
+    try {
+      Future<Boolean> future = executor.submit("member", () -> sleep(60000));
+      assertThrows(
+          DeadlineExceededException.class, () -> executor.join(future, Deadline.after(100)));
+      assertTrue(future.isCancelled());
+      assertTrue(executor.join(executor.submit("member", () -> true), Deadline.after(5000)));
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void TestHedgeNotNeeded() {
+    FanoutExecutor executor = new FanoutExecutor(null);
+    try {
+      AtomicInteger calls = new AtomicInteger();
+      Callable<Integer> request = calls::incrementAndGet;
+      assertEquals(1, (int) executor.hedge(request, 1000, Deadline.after(5000)));
+      assertEquals(1, calls.get());
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void TestHedgeFirstAnswerWins() throws InterruptedException {
+    FanoutExecutor executor = new FanoutExecutor(null);
+    try {
+      AtomicInteger calls = new AtomicInteger();
+      CountDownLatch cancelled = new CountDownLatch(1);
+      Callable<String> request =
+          () -> {
+            if (calls.incrementAndGet() == 2) {
+              return "backup";
+            }
+            try {
+              return Boolean.toString(sleep(60000));
+            } catch (InterruptedException e) {
+              cancelled.countDown();
+              throw e;
+            }
+          };
+      assertEquals("backup", executor.hedge(request, 50, Deadline.after(5000)));
+      assertEquals(2, calls.get());
+      // the slow primary is cancelled
+      assertTrue(cancelled.await(5, TimeUnit.SECONDS));
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void TestHedgeAfterDeadline() throws InterruptedException {
+    FanoutExecutor executor = new FanoutExecutor(null);
+    try {
+      AtomicInteger calls = new AtomicInteger();
+      CountDownLatch cancelled = new CountDownLatch(2);
+      Callable<Boolean> request =
+          () -> {
+            calls.incrementAndGet();
+            try {
+              return sleep(60000);
+            } catch (InterruptedException e) {
+              cancelled.countDown();
+              throw e;
+            }
+          };
+      assertThrows(
+          DeadlineExceededException.class, () -> executor.hedge(request, 50, Deadline.after(200)));
+      assertEquals(2, calls.get());
+      // neither request keeps running
+      assertTrue(cancelled.await(5, TimeUnit.SECONDS));
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  private static boolean sleep(long millis) throws InterruptedException {
+    Thread.sleep(millis);
+    return true;
+  }
+}
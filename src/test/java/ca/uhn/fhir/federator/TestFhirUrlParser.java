@@ -577,6 +577,23 @@ public class TestFhirUrlParser {
     assertEquals(expected, actual);
   }
 
+  @Test
+  public void testTwoStageParsingOfWarmUpQueries() {
+    List<String> queries = FhirUrlParsing.readWarmUpQueries();
+    assertEquals(false, queries.isEmpty());
+    for (String query : queries) {
+      FhirUrlParser parser =
+          new FhirUrlParser(
+              new CommonTokenStream(new FhirUrlLexer(CharStreams.fromString(query))));
+      SContext expected = parser.s();
+      SContext actual =
+          FhirUrlParsing.parse(new FhirUrlLexer(CharStreams.fromString(query)).getAllTokens());
+      List<String> ruleNames = Arrays.asList(FhirUrlParser.ruleNames);
+      assertEquals(
+          TreeUtils.toPrettyTree(expected, ruleNames), TreeUtils.toPrettyTree(actual, ruleNames));
+    }
+  }
+
   private List<List<String>> toUrls(String simplestProgram) throws IOException {
     FhirUrlAnalyser visitor = toVisitor(simplestProgram);
 
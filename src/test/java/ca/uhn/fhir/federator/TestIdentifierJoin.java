@@ -0,0 +1,137 @@
+package ca.uhn.fhir.federator;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Random;
+import java.util.stream.Collectors;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Identifier;
+import org.hl7.fhir.r4.model.Patient;
+import org.junit.jupiter.api.Test;
+
+import ca.uhn.fhir.federator.FederatorProperties.ResourceConfig;
+
+public class TestIdentifierJoin {
+
+  private static final String[] SYSTEMS = {"urn:a", "urn:b", "urn:c", null};
+
+  @Test
+  public void TestSameAsPredicateWithoutFilter() {
+    assertSameAsPredicate(null);
+  }
+
+  @Test
+  public void TestSameAsPredicateWithFilter() {
+    assertSameAsPredicate(List.of(List.of("urn:a", "urn:b")));
+  }
+
+  @Test
+  public void TestSameAsPredicateWithAndFilter() {
+    assertSameAsPredicate(List.of(List.of("urn:a"), List.of("urn:b", "urn:c")));
+  }
+
+  private void assertSameAsPredicate(List<List<String>> identifiers) {
+    ResourceConfig config = new ResourceConfig();
+    config.setIdentifiers(identifiers);
+    ResourceRegistry rr = new ResourceRegistry(config);
+    Random random = new Random(42);
+    for (int run = 0; run < 20; run++) {
+      List<IBaseResource> list = createPatients(random, 1 + random.nextInt(40));
+      List<IBaseResource> list2 = createPatients(random, 1 + random.nextInt(40));
+      list.add(list.get(0));
+
+      List<IBaseResource> expected =
+          list.stream()
+              .distinct()
+              .filter(x -> list2.stream().anyMatch(y -> new IBaseResourcePredicate(rr).test(x, y)))
+              .collect(Collectors.toList());
+
+      assertEquals(expected, new IdentifierJoin(rr).intersection(list, list2));
+    }
+  }
+
+  @Test
+  public void TestJoinIdentifiersKeepEveryMatch() {
+    for (List<List<String>> identifiers :
+        Arrays.asList(null, List.of(List.of("urn:a")), List.of(List.of("urn:a", "urn:b")))) {
+      ResourceConfig config = new ResourceConfig();
+      config.setIdentifiers(identifiers);
+      ResourceRegistry rr = new ResourceRegistry(config);
+      Random random = new Random(7);
+      for (int run = 0; run < 20; run++) {
+        List<IBaseResource> list = createPatients(random, 1 + random.nextInt(20));
+        List<IBaseResource> list2 = createPatients(random, 1 + random.nextInt(40));
+        Optional<List<Identifier>> filter = new IdentifierJoin(rr).getJoinIdentifiers(list);
+        if (filter.isEmpty()) {
+          continue;
+        }
+        // what an identifier search on the filter would return
+        List<IBaseResource> candidates =
+            list2.stream()
+                .filter(
+                    x ->
+                        ((Patient) x)
+                            .getIdentifier().stream()
+                                .anyMatch(y -> filter.get().stream().anyMatch(z -> found(z, y))))
+                .collect(Collectors.toList());
+        IdentifierJoin join = new IdentifierJoin(rr);
+        assertEquals(join.intersection(list2, list), join.intersection(candidates, list));
+      }
+    }
+  }
+
+  @Test
+  public void TestGroupsFollowPredicate() {
+    for (List<List<String>> identifiers :
+        Arrays.asList(
+            null,
+            List.of(List.of("urn:a", "urn:b")),
+            List.of(List.of("urn:a"), List.of("urn:b")))) {
+      ResourceConfig config = new ResourceConfig();
+      config.setIdentifiers(identifiers);
+      ResourceRegistry rr = new ResourceRegistry(config);
+      IBaseResourcePredicate predicate = new IBaseResourcePredicate(rr);
+      Random random = new Random(11);
+      for (int run = 0; run < 20; run++) {
+        List<IBaseResource> list = createPatients(random, 1 + random.nextInt(40));
+        List<List<IBaseResource>> groups = new IdentifierJoin(rr).group(list);
+        assertEquals(list.size(), groups.stream().mapToInt(List::size).sum());
+        for (List<IBaseResource> group : groups) {
+          for (IBaseResource resource : list) {
+            // matching resources are in the same group, and a resource matches its group
+            boolean matches =
+                group.stream().anyMatch(x -> x != resource && predicate.test(x, resource));
+            boolean single = group.size() == 1 && group.contains(resource);
+            assertEquals(matches || single, group.contains(resource));
+          }
+        }
+      }
+    }
+  }
+
+  private static boolean found(Identifier search, Identifier identifier) {
+    return Objects.equals(search.getValue(), identifier.getValue())
+        && (search.getSystem() == null || search.getSystem().equals(identifier.getSystem()));
+  }
+
+  private List<IBaseResource> createPatients(Random random, int count) {
+    List<IBaseResource> retVal = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      Patient patient = new Patient();
+      int identifiers = random.nextInt(3);
+      for (int j = 0; j < identifiers; j++) {
+        patient
+            .addIdentifier()
+            .setSystem(SYSTEMS[random.nextInt(SYSTEMS.length)])
+            .setValue(Integer.toString(random.nextInt(5)));
+      }
+      retVal.add(patient);
+    }
+    return retVal;
+  }
+}
@@ -0,0 +1,50 @@
+package ca.uhn.fhir.federator;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import org.junit.jupiter.api.Test;
+
+public class TestLatencyWindow {
+
+  @Test
+  public void TestEmpty() {
+    LatencyWindow window = new LatencyWindow(10);
+    assertEquals(0, window.getCount());
+    assertEquals(-1, window.getPercentile(95));
+  }
+
+  @Test
+  public void TestPercentile() {
+    LatencyWindow window = new LatencyWindow(100);
+    // recorded out of order
+    for (int i = 100; i > 0; i--) {
+      window.record(i);
+    }
+    assertEquals(100, window.getCount());
+    assertEquals(95, window.getPercentile(95));
+    assertEquals(50, window.getPercentile(50));
+    assertEquals(100, window.getPercentile(100));
+    assertEquals(1, window.getPercentile(0));
+  }
+
+  @Test
+  public void TestFewSamples() {
+    LatencyWindow window = new LatencyWindow(100);
+    window.record(10);
+    window.record(1000);
+    assertEquals(1000, window.getPercentile(95));
+    assertEquals(10, window.getPercentile(50));
+  }
+
+  @Test
+  public void TestRolling() {
+    LatencyWindow window = new LatencyWindow(4);
+    window.record(5000);
+    for (int i = 0; i < 4; i++) {
+      window.record(10);
+    }
+    // the slow request left the window
+    assertEquals(4, window.getCount());
+    assertEquals(10, window.getPercentile(95));
+  }
+}
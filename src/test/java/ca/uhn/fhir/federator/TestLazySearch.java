@@ -0,0 +1,50 @@
+package ca.uhn.fhir.federator;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.federator.FederatorProperties.Planner;
+import ca.uhn.fhir.federator.FederatorProperties.ResourceConfig;
+
+public class TestLazySearch {
+
+  @Test
+  public void TestSingleParameterIsLazy() {
+    for (boolean pushDown : List.of(true, false)) {
+      FederatedSearchProvider provider = newProvider(pushDown);
+      for (String query : List.of("Patient?name=Sarah", "Patient")) {
+        assertTrue(provider.searchWithAstQueryAnalysis(query) instanceof LazyBundleProvider, query);
+      }
+    }
+  }
+
+  @Test
+  public void TestAndIsLazyOnlyWhenPushedDown() {
+    String query = "Patient?name=Sarah&gender=female";
+    assertTrue(newProvider(true).searchWithAstQueryAnalysis(query) instanceof LazyBundleProvider);
+    assertFalse(newProvider(false).searchWithAstQueryAnalysis(query) instanceof LazyBundleProvider);
+  }
+
+  private static FederatedSearchProvider newProvider(boolean pushDown) {
+    FhirContext ctx = FhirContext.forR4Cached();
+    ClientRegistry cr = new ClientRegistry(List.of(), ctx, new FanoutExecutor(null), null);
+    ResourceConfig config = new ResourceConfig();
+    // no members, the searches are not sent anywhere
+    config.setLocations(List.of());
+    ResourceRegistry rr = new ResourceRegistry(config);
+    SearchParam2FhirPathRegistry s2f =
+        new SearchParam2FhirPathRegistry() {
+          @Override
+          boolean searchParamExists(String resource, String searchParam) {
+            return true;
+          }
+        };
+    Planner planner = new Planner();
+    planner.setPushDown(pushDown);
+    return new FederatedSearchProvider(cr, rr, ctx, s2f, new QueryPlanner(cr, rr, planner), null);
+  }
+}
@@ -0,0 +1,121 @@
+package ca.uhn.fhir.federator;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+import ca.uhn.fhir.federator.FederatorProperties.CircuitBreaker;
+import ca.uhn.fhir.federator.MemberCircuitBreaker.State;
+
+public class TestMemberCircuitBreaker {
+
+  private static final int OPEN_DURATION = 200;
+
+  @Test
+  public void TestOpensAfterMinimumCalls() {
+    MemberCircuitBreaker breaker = newBreaker(10, 4);
+    for (int i = 0; i < 3; i++) {
+      breaker.recordFailure();
+      assertEquals(State.CLOSED, breaker.getState());
+      assertTrue(breaker.allowRequest());
+    }
+    breaker.recordFailure();
+    assertEquals(State.OPEN, breaker.getState());
+    assertFalse(breaker.allowRequest());
+  }
+
+  @Test
+  public void TestFailureRateOverWindow() {
+    MemberCircuitBreaker breaker = newBreaker(4, 4);
+    breaker.recordSuccess(1);
+    breaker.recordSuccess(1);
+    breaker.recordSuccess(1);
+    breaker.recordFailure();
+    // 1 of 4 failed
+    assertEquals(State.CLOSED, breaker.getState());
+    breaker.recordFailure();
+    // the first success left the window, 2 of 4 failed
+    assertEquals(State.OPEN, breaker.getState());
+  }
+
+  @Test
+  public void TestSlowCallsCountAsFailures() {
+    MemberCircuitBreaker breaker = newBreaker(4, 4);
+    for (int i = 0; i < 3; i++) {
+      breaker.recordSuccess(100);
+    }
+    assertEquals(State.CLOSED, breaker.getState());
+    breaker.recordSuccess(101);
+    assertEquals(State.CLOSED, breaker.getState());
+    breaker.recordSuccess(101);
+    assertEquals(State.OPEN, breaker.getState());
+  }
+
+  @Test
+  public void TestHalfOpenProbe() throws InterruptedException {
+    MemberCircuitBreaker breaker = open(newBreaker(4, 4));
+    assertFalse(breaker.allowRequest());
+
+    Thread.sleep(OPEN_DURATION + 50);
+    // one probe, the next request waits for its outcome
+    assertTrue(breaker.allowRequest());
+    assertEquals(State.HALF_OPEN, breaker.getState());
+    assertFalse(breaker.allowRequest());
+    breaker.recordFailure();
+    assertEquals(State.OPEN, breaker.getState());
+    assertFalse(breaker.allowRequest());
+
+    Thread.sleep(OPEN_DURATION + 50);
+    assertTrue(breaker.allowRequest());
+    breaker.recordSuccess(1);
+    assertEquals(State.CLOSED, breaker.getState());
+    assertTrue(breaker.allowRequest());
+    // the window starts over
+    breaker.recordFailure();
+    assertEquals(State.CLOSED, breaker.getState());
+  }
+
+  @Test
+  public void TestProbeWithoutOutcome() throws InterruptedException {
+    MemberCircuitBreaker breaker = open(newBreaker(4, 4));
+    Thread.sleep(OPEN_DURATION + 50);
+    assertTrue(breaker.allowRequest());
+    assertFalse(breaker.allowRequest());
+    // the probe never reported back, another one is let through
+    Thread.sleep(OPEN_DURATION + 50);
+    assertTrue(breaker.allowRequest());
+  }
+
+  @Test
+  public void TestDisabled() {
+    CircuitBreaker config = new CircuitBreaker();
+    config.setEnabled(false);
+    config.setMinimumCalls(1);
+    MemberCircuitBreaker breaker = new MemberCircuitBreaker("http://member", config);
+    for (int i = 0; i < 10; i++) {
+      breaker.recordFailure();
+    }
+    assertEquals(State.CLOSED, breaker.getState());
+    assertTrue(breaker.allowRequest());
+  }
+
+  private static MemberCircuitBreaker open(MemberCircuitBreaker breaker) {
+    while (breaker.getState() != State.OPEN) {
+      breaker.recordFailure();
+    }
+    return breaker;
+  }
+
+  /** A breaker that opens at 50% failures, slow calls taking more than 100 ms. */
+  private static MemberCircuitBreaker newBreaker(int windowSize, int minimumCalls) {
+    CircuitBreaker config = new CircuitBreaker();
+    config.setWindowSize(windowSize);
+    config.setMinimumCalls(minimumCalls);
+    config.setFailureRate(50);
+    config.setSlowCall(100);
+    config.setOpenDuration(OPEN_DURATION);
+    return new MemberCircuitBreaker("http://member", config);
+  }
+}
@@ -0,0 +1,127 @@
+package ca.uhn.fhir.federator;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+import java.util.stream.Collectors;
+import org.junit.jupiter.api.Test;
+
+import ca.uhn.fhir.federator.FederatorProperties.ServerDesc;
+
+public class TestOrBatcher {
+
+  private static final String BASE = "http://member";
+  private static final ParsedUrl URL = new ParsedUrl("Patient", List.of("identifier"), "");
+  // "http://member/Patient?identifier="
+  private static final int PREFIX = BASE.length() + 1 + URL.toString().length();
+
+  @Test
+  public void TestSplitByBatchSize() {
+    OrBatcher batcher = new OrBatcher(newMember(null, null));
+    assertEquals(
+        List.of("1,2,3,4,5,6,7,8,9,10", "11,12"),
+        values(batcher.split(URL.withValue(values(12)), null, false)));
+  }
+
+  @Test
+  public void TestSplitByMaxOr() {
+    OrBatcher batcher = new OrBatcher(newMember(null, 4));
+    assertEquals(
+        List.of("1,2,3,4", "5,6"), values(batcher.split(URL.withValue(values(6)), null, false)));
+    // the smallest maximum wins
+    assertEquals(
+        List.of("1,2,3", "4,5,6"), values(batcher.split(URL.withValue(values(6)), 3, false)));
+  }
+
+  @Test
+  public void TestSplitByUrlLength() {
+    // room for 11 characters of values
+    OrBatcher batcher = new OrBatcher(newMember(PREFIX + 11, null));
+    List<ParsedUrl> split = batcher.split(URL.withValue("a1,a2,a3,a4,a5"), null, false);
+    assertEquals(List.of("a1,a2,a3,a4", "a5"), values(split));
+    for (ParsedUrl url : split) {
+      assertTrue(BASE.length() + 1 + url.toString().length() <= PREFIX + 11, url.toString());
+    }
+    // a value that does not fit on its own is still sent
+    assertEquals(
+        List.of("a1", "abcdefghijkl", "a2"),
+        values(batcher.split(URL.withValue("a1,abcdefghijkl,a2"), null, false)));
+  }
+
+  @Test
+  public void TestSplitPost() {
+    OrBatcher batcher = new OrBatcher(newMember(PREFIX + 11, null));
+    assertEquals(
+        List.of(values(20)), values(batcher.split(URL.withValue(values(20)), null, true)));
+  }
+
+  @Test
+  public void TestSingleValue() {
+    OrBatcher batcher = new OrBatcher(newMember(null, null));
+    ParsedUrl url = URL.withValue("1");
+    assertEquals(List.of(url), batcher.split(url, null, false));
+    assertEquals(List.of(url), OrBatcher.halve(url));
+  }
+
+  @Test
+  public void TestAdaptiveBatchSize() {
+    OrBatcher batcher = new OrBatcher(newMember(null, null));
+    assertEquals(OrBatcher.INITIAL_BATCH_SIZE, batcher.getBatchSize());
+    batcher.onResponse(10);
+    assertEquals(12, batcher.getBatchSize());
+    // neither fast nor slow
+    batcher.onResponse(3000);
+    assertEquals(12, batcher.getBatchSize());
+    batcher.onResponse(6000);
+    assertEquals(6, batcher.getBatchSize());
+    for (int i = 0; i < 100; i++) {
+      batcher.onResponse(10);
+    }
+    assertEquals(OrBatcher.MAX_BATCH_SIZE, batcher.getBatchSize());
+    for (int i = 0; i < 20; i++) {
+      batcher.onResponse(6000);
+    }
+    assertEquals(1, batcher.getBatchSize());
+  }
+
+  @Test
+  public void TestRejected() {
+    OrBatcher batcher = new OrBatcher(newMember(2000, null));
+    batcher.onRejected(1200);
+    assertEquals(900, batcher.getMaxUrlLength());
+    assertEquals(OrBatcher.INITIAL_BATCH_SIZE / 2, batcher.getBatchSize());
+    assertEquals(2000, batcher.getConfiguredMaxUrlLength());
+    // a longer rejected URL does not make the limit longer
+    batcher.onRejected(1900);
+    assertEquals(900, batcher.getMaxUrlLength());
+    batcher.onRejected(100);
+    assertEquals(OrBatcher.MIN_URL_LENGTH, batcher.getMaxUrlLength());
+  }
+
+  @Test
+  public void TestHalve() {
+    assertEquals(List.of("1,2", "3,4,5"), values(OrBatcher.halve(URL.withValue(values(5)))));
+  }
+
+  private static ServerDesc newMember(Integer maxUrlLength, Integer maxOr) {
+    ServerDesc retVal = new ServerDesc();
+    retVal.setUrl(BASE);
+    retVal.setMaxUrlLength(maxUrlLength);
+    retVal.setMaxOr(maxOr);
+    return retVal;
+  }
+
+  /** The values 1 to count, separated by commas. */
+  private static String values(int count) {
+    StringBuilder retVal = new StringBuilder();
+    for (int i = 1; i <= count; i++) {
+      retVal.append(i == 1 ? "" : ",").append(i);
+    }
+    return retVal.toString();
+  }
+
+  private static List<String> values(List<ParsedUrl> urls) {
+    return urls.stream().map(ParsedUrl::getValue).collect(Collectors.toList());
+  }
+}
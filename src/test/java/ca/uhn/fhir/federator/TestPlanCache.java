@@ -0,0 +1,137 @@
+package ca.uhn.fhir.federator;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.stream.Collectors;
+import org.junit.jupiter.api.Test;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.federator.FederatorProperties.Planner;
+import ca.uhn.fhir.federator.FederatorProperties.ResourceConfig;
+
+public class TestPlanCache {
+
+  // the plan only copies the values of these queries
+  private static final List<String> HITS =
+      List.of(
+          "DiagnosticReport?subject:Patient.name=Sarah",
+          "Patient?general-practitioner:Practitioner.name=Sarah"
+              + "&general-practitioner:Practitioner.address-state=WA",
+          "Observation?subject:Patient.name=Hodges&code=http://loinc.org|29463-7",
+          "Patient?name:exact=Sarah");
+
+  // references and includes are part of the plan
+  private static final List<String> MISSES =
+      List.of(
+          "Encounter?subject=Patient/78a14cbe-8968-49fd-a231-d43e6619399f",
+          "MedicationDispense?_include=MedicationDispense:prescription",
+          "MedicationRequest?_include=MedicationRequest:patient");
+
+  private static final FederatedSearchProvider PROVIDER = newProvider();
+
+  @Test
+  public void testSameAsParser() {
+    List<String> queries = new ArrayList<>(HITS);
+    queries.addAll(MISSES);
+    queries.addAll(FhirUrlParsing.readWarmUpQueries());
+    for (String query : queries) {
+      for (int shift = 1; shift <= 3; shift++) {
+        String other = vary(query, shift);
+        PlanCache cache = new PlanCache(PlanCache.DEFAULT_SIZE);
+        cache.put(PlanCache.shape(query, false), plan(query));
+        Optional<QueryPlan> cached = cache.get(PlanCache.shape(other, false));
+        if (cached.isPresent()) {
+          assertEquals(toUrls(plan(other)), toUrls(cached.get()), other);
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testHitsAndMisses() {
+    for (String query : HITS) {
+      PlanCache cache = new PlanCache(PlanCache.DEFAULT_SIZE);
+      cache.put(PlanCache.shape(query, false), plan(query));
+      assertTrue(cache.get(PlanCache.shape(vary(query, 1), false)).isPresent(), query);
+    }
+    for (String query : MISSES) {
+      PlanCache cache = new PlanCache(PlanCache.DEFAULT_SIZE);
+      cache.put(PlanCache.shape(query, false), plan(query));
+      assertTrue(cache.get(PlanCache.shape(query, false)).isPresent(), query);
+      assertTrue(cache.get(PlanCache.shape(vary(query, 1), false)).isEmpty(), query);
+    }
+  }
+
+  /**
+   * The query with other letters and digits in its values, which mostly keeps the token types. A
+   * percent encoded character is kept as it is.
+   */
+  private static String vary(String query, int shift) {
+    StringBuilder retVal = new StringBuilder();
+    boolean inValue = false;
+    for (int i = 0; i < query.length(); i++) {
+      char c = query.charAt(i);
+      if (c == '&') {
+        inValue = false;
+      } else if (c == '=') {
+        inValue = true;
+      } else if (inValue && c == '%' && i + 2 < query.length()) {
+        retVal.append(query, i, i + 3);
+        i += 2;
+        continue;
+      } else if (inValue) {
+        c = shift(c, shift);
+      }
+      retVal.append(c);
+    }
+    return retVal.toString();
+  }
+
+  private static char shift(char c, int shift) {
+    if (c >= 'a' && c <= 'z') {
+      return (char) ('a' + (c - 'a' + shift) % 26);
+    } else if (c >= 'A' && c <= 'Z') {
+      return (char) ('A' + (c - 'A' + shift) % 26);
+    } else if (c >= '0' && c <= '9') {
+      return (char) ('0' + (c - '0' + shift) % 10);
+    }
+    return c;
+  }
+
+  /** The plan as the parser creates it, without the cache. */
+  private static QueryPlan plan(String query) {
+    return PROVIDER.getPlan(query);
+  }
+
+  /** The positions and URLs of the and parameters, then those of the include parameters. */
+  private static List<Object> toUrls(QueryPlan plan) {
+    return List.of(toUrls(plan.getAndParameters()), toUrls(plan.getIncludeParameters()));
+  }
+
+  private static List<Object> toUrls(List<QueryPlan.Parameter> parameters) {
+    return parameters.stream()
+        .map(parameter -> List.<Object>of(parameter.getPosition(), parameter.getUrls()))
+        .collect(Collectors.toList());
+  }
+
+  private static FederatedSearchProvider newProvider() {
+    FhirContext ctx = FhirContext.forR4Cached();
+    ClientRegistry cr = new ClientRegistry(List.of(), ctx, new FanoutExecutor(null), null);
+    ResourceRegistry rr = new ResourceRegistry(new ResourceConfig());
+    // every search parameter exists, so no URL is dropped
+    SearchParam2FhirPathRegistry s2f =
+        new SearchParam2FhirPathRegistry() {
+          @Override
+          boolean searchParamExists(String resource, String searchParam) {
+            return true;
+          }
+        };
+    Planner planner = new Planner();
+    planner.setPlanCache(0);
+    return new FederatedSearchProvider(cr, rr, ctx, s2f, new QueryPlanner(cr, rr, planner), null);
+  }
+}
@@ -0,0 +1,242 @@
+package ca.uhn.fhir.federator;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Patient;
+import org.junit.jupiter.api.Test;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.federator.FederatorProperties.Planner;
+import ca.uhn.fhir.federator.FederatorProperties.ResourceConfig;
+import ca.uhn.fhir.federator.ast.Node;
+import ca.uhn.fhir.federator.ast.ParameterNode;
+
+public class TestQueryPlanner {
+
+  private final ClientRegistry cr =
+      new ClientRegistry(List.of(), FhirContext.forR4Cached(), new FanoutExecutor(null), null);
+  private final ResourceRegistry rr = newResourceRegistry();
+
+  @Test
+  public void TestOrderByNumberOfValues() {
+    QueryPlanner planner = newPlanner(new Planner());
+    Node name = newNode("Patient", "name", "Sarah");
+    Node identifiers = newNode("Patient", "identifier", "urn:a|1,urn:a|2,urn:a|3");
+    Node id = newNode("Patient", "_id", "1");
+    assertEquals(
+        List.of(id, identifiers, name),
+        planner.order(List.of(name, identifiers, id), Deadline.none()));
+  }
+
+  @Test
+  public void TestOrderByStatistics() {
+    QueryPlanner planner = newPlanner(new Planner());
+    Node name = newNode("Patient", "name", "Sarah");
+    Node gender = newNode("Patient", "gender", "female");
+    Node birthdate = newNode("Patient", "birthdate", "2000");
+    planner.record(name, 100);
+    planner.record(gender, 10);
+    // unknown parameters go last
+    assertEquals(
+        List.of(gender, name, birthdate),
+        planner.order(List.of(birthdate, name, gender), Deadline.none()));
+    // recorded for another value of the same parameter: 10 * 0.7 + 1000 * 0.3
+    planner.record(newNode("Patient", "gender", "male"), 1000);
+    assertEquals(
+        List.of(name, gender, birthdate),
+        planner.order(List.of(birthdate, name, gender), Deadline.none()));
+  }
+
+  @Test
+  public void TestUnknownKeepUrlOrder() {
+    QueryPlanner planner = newPlanner(new Planner());
+    Node name = newNode("Patient", "name", "Sarah");
+    Node gender = newNode("Patient", "gender", "female");
+    assertEquals(List.of(name, gender), planner.order(List.of(name, gender), Deadline.none()));
+    assertEquals(List.of(gender, name), planner.order(List.of(gender, name), Deadline.none()));
+  }
+
+  @Test
+  public void TestOnlyUnknownAreProbed() {
+    Planner config = new Planner();
+    config.setProbe(true);
+    QueryPlanner planner = newPlanner(config);
+    Node name = newNode("Patient", "name", "Sarah");
+    Node gender = newNode("Patient", "gender", "female");
+    planner.record(name, 5);
+    // without members the probe of gender counts 0, a probe of name would too and keep the order
+    assertEquals(List.of(gender, name), planner.order(List.of(name, gender), Deadline.none()));
+  }
+
+  @Test
+  public void TestDisabled() {
+    Planner config = new Planner();
+    config.setEnabled(false);
+    QueryPlanner planner = newPlanner(config);
+    Node name = newNode("Patient", "name", "Sarah");
+    Node id = newNode("Patient", "_id", "1");
+    assertEquals(List.of(name, id), planner.order(List.of(name, id), Deadline.none()));
+  }
+
+  @Test
+  public void TestPushDown() {
+    Planner config = new Planner();
+    config.setPushDown(true);
+    QueryPlanner planner = newPlanner(config);
+    List<ParsedUrl> name = List.of(new ParsedUrl("Patient", List.of("name"), "Sarah"));
+    List<ParsedUrl> gender = List.of(new ParsedUrl("Patient", List.of("gender"), "female"));
+    assertEquals(
+        "Patient?name=Sarah&gender=female",
+        planner.pushDown(List.of(name, gender)).orElseThrow().toString());
+    // a single parameter is searched as it is
+    assertTrue(planner.pushDown(List.of(name)).isEmpty());
+  }
+
+  @Test
+  public void TestPushDownOffByDefault() {
+    List<ParsedUrl> name = List.of(new ParsedUrl("Patient", List.of("name"), "Sarah"));
+    List<ParsedUrl> gender = List.of(new ParsedUrl("Patient", List.of("gender"), "female"));
+    assertTrue(newPlanner(new Planner()).pushDown(List.of(name, gender)).isEmpty());
+    assertTrue(newPlanner(null).pushDown(List.of(name, gender)).isEmpty());
+  }
+
+  @Test
+  public void TestNotPushedDown() {
+    Planner config = new Planner();
+    config.setPushDown(true);
+    QueryPlanner planner = newPlanner(config);
+    List<ParsedUrl> name = List.of(new ParsedUrl("Patient", List.of("name"), "Sarah"));
+    // chained, Patient?general-practitioner.name=Smith
+    List<ParsedUrl> chained =
+        List.of(
+            new ParsedUrl("Practitioner", List.of("name"), "Smith"),
+            new ParsedUrl(
+                "Patient",
+                List.of("general-practitioner", "identifier"),
+                "Practitioner",
+                List.of("identifier")));
+    // reverse chained, Patient?_has:Observation:subject:code=1234
+    List<ParsedUrl> has =
+        List.of(
+            new ParsedUrl("Observation", List.of("code"), "1234"),
+            new ParsedUrl(
+                "Patient", List.of("identifier"), "Observation", List.of("subject", "identifier")));
+    List<ParsedUrl> placeholder = has.subList(1, 2);
+    ParsedUrl iterate = new ParsedUrl("Patient", List.of("gender"), "female");
+    iterate.setIterate(true);
+    List<ParsedUrl> otherResource = List.of(new ParsedUrl("Person", List.of("gender"), "female"));
+
+    for (List<ParsedUrl> other :
+        List.of(chained, has, placeholder, List.of(iterate), otherResource)) {
+      assertTrue(planner.pushDown(List.of(name, other)).isEmpty(), other.toString());
+    }
+  }
+
+  @Test
+  public void TestSemiJoin() {
+    QueryPlanner planner = newPlanner(newSemiJoin(2));
+    ParameterNode gender = (ParameterNode) newNode("Patient", "gender", "female");
+    List<IBaseResource> running = List.of(createPatient("urn:a", "1"), createPatient("urn:a", "2"));
+    Node retVal = planner.semiJoin(gender, running);
+    assertNotSame(gender, retVal);
+    assertEquals(gender.getParsedUrls(), ((ParameterNode) retVal).getParsedUrls());
+    // the filtered search needs the running result, it cannot be read lazily
+    assertTrue(gender.isLazy());
+    assertFalse(((ParameterNode) retVal).isLazy());
+  }
+
+  @Test
+  public void TestSemiJoinThreshold() {
+    QueryPlanner planner = newPlanner(newSemiJoin(2));
+    Node gender = newNode("Patient", "gender", "female");
+    List<IBaseResource> running =
+        List.of(
+            createPatient("urn:a", "1"), createPatient("urn:a", "2"), createPatient("urn:a", "3"));
+    assertSame(gender, planner.semiJoin(gender, running));
+    assertSame(gender, planner.semiJoin(gender, List.of()));
+  }
+
+  @Test
+  public void TestSemiJoinIdentifierThreshold() {
+    ResourceConfig config = new ResourceConfig();
+    config.setLocations(List.of());
+    config.setIdentifiers(List.of(List.of("urn:a", "urn:b")));
+    QueryPlanner planner = new QueryPlanner(cr, new ResourceRegistry(config), newSemiJoin(2));
+    Node gender = newNode("Patient", "gender", "female");
+    // two resources, but four identifiers to filter on
+    List<IBaseResource> running =
+        List.of(
+            createPatient("urn:a", "1", "urn:b", "1"), createPatient("urn:a", "2", "urn:b", "2"));
+    assertSame(gender, planner.semiJoin(gender, running));
+  }
+
+  @Test
+  public void TestNoSemiJoin() {
+    QueryPlanner planner = newPlanner(newSemiJoin(2));
+    List<IBaseResource> running = List.of(createPatient("urn:a", "1"));
+    // on another resource than the running result
+    Node observation = newNode("Observation", "code", "1234");
+    assertSame(observation, planner.semiJoin(observation, running));
+    // waits for the results of another search
+    Node chained =
+        new ParameterNode(
+            List.of(
+                new ParsedUrl("Practitioner", List.of("name"), "Smith"),
+                new ParsedUrl(
+                    "Patient",
+                    List.of("general-practitioner", "identifier"),
+                    "Practitioner",
+                    List.of("identifier"))),
+            rr,
+            cr,
+            FhirContext.forR4Cached(),
+            null);
+    assertSame(chained, planner.semiJoin(chained, running));
+    // an identifier without value matches too many resources
+    Node gender = newNode("Patient", "gender", "female");
+    Patient noValue = new Patient();
+    noValue.addIdentifier().setSystem("urn:a");
+    assertSame(gender, planner.semiJoin(gender, List.of(noValue)));
+  }
+
+  private static Planner newSemiJoin(int semiJoin) {
+    Planner retVal = new Planner();
+    retVal.setSemiJoin(semiJoin);
+    return retVal;
+  }
+
+  /** A patient with the system and value pairs as identifiers. */
+  private static Patient createPatient(String... identifiers) {
+    Patient retVal = new Patient();
+    for (int i = 0; i < identifiers.length; i += 2) {
+      retVal.addIdentifier().setSystem(identifiers[i]).setValue(identifiers[i + 1]);
+    }
+    return retVal;
+  }
+
+  private QueryPlanner newPlanner(Planner config) {
+    return new QueryPlanner(cr, rr, config);
+  }
+
+  private Node newNode(String resource, String key, String value) {
+    return new ParameterNode(
+        List.of(new ParsedUrl(resource, List.of(key), value)),
+        rr,
+        cr,
+        FhirContext.forR4Cached(),
+        null);
+  }
+
+  private static ResourceRegistry newResourceRegistry() {
+    ResourceConfig config = new ResourceConfig();
+    // no members, probes are not sent anywhere
+    config.setLocations(List.of());
+    return new ResourceRegistry(config);
+  }
+}
@@ -0,0 +1,86 @@
+package ca.uhn.fhir.federator;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import java.util.List;
+import java.util.stream.Collectors;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.Patient;
+import org.junit.jupiter.api.Test;
+
+import ca.uhn.fhir.federator.FederatorProperties.ResourceConfig;
+
+public class TestRecordMerger {
+
+  @Test
+  public void TestMergeTransitiveCopies() {
+    ResourceRegistry rr = newRegistry();
+    // a ~ b and b ~ c, but a does not match c
+    Patient a = createPatient("member-a", "urn:a", "1");
+    Patient b = createPatient("member-b", "urn:a", "1", "urn:b", "2");
+    Patient c = createPatient("member-c", "urn:b", "2");
+    Patient other = createPatient("member-c", "urn:a", "3");
+
+    List<IBaseResource> merged = new RecordMerger(rr).merge(List.of(a, other, b, c));
+
+    assertEquals(List.of(a, other), merged);
+    assertEquals(List.of("member-a", "member-b", "member-c"), members(a));
+    assertEquals(List.of("member-c"), members(other));
+  }
+
+  @Test
+  public void TestMergeAfterIntersection() {
+    ResourceRegistry rr = newRegistry();
+    Patient a = createPatient("member-a", "urn:a", "1");
+    Patient b = createPatient("member-b", "urn:a", "1", "urn:b", "2");
+    Patient c = createPatient("member-c", "urn:b", "2");
+    // the other parameter of the AND only found the copy of member c
+    Patient d = createPatient("member-c", "urn:b", "2");
+
+    List<IBaseResource> intersection =
+        new IdentifierJoin(rr).intersection(List.of(a, b, c), List.of(d));
+    List<IBaseResource> merged = new RecordMerger(rr).merge(intersection);
+
+    assertEquals(1, merged.size());
+    assertSame(b, merged.get(0));
+    assertEquals(List.of("member-b", "member-c"), members(b));
+  }
+
+  @Test
+  public void TestNotMergedType() {
+    ResourceConfig config = new ResourceConfig();
+    config.setIdentifiers(List.of(List.of("urn:a", "urn:b")));
+    ResourceRegistry rr = new ResourceRegistry(config);
+    Patient a = createPatient("member-a", "urn:a", "1");
+    Patient b = createPatient("member-b", "urn:a", "1");
+
+    assertEquals(List.of(a, b), new RecordMerger(rr).merge(List.of(a, b)));
+    assertEquals(List.of(), members(a));
+  }
+
+  private static ResourceRegistry newRegistry() {
+    ResourceConfig config = new ResourceConfig();
+    config.setIdentifiers(List.of(List.of("urn:a", "urn:b")));
+    config.setMerge(true);
+    return new ResourceRegistry(config);
+  }
+
+  /** A patient from the member, with the system and value pairs as identifiers. */
+  private static Patient createPatient(String member, String... identifiers) {
+    Patient retVal = new Patient();
+    for (int i = 0; i < identifiers.length; i += 2) {
+      retVal.addIdentifier().setSystem(identifiers[i]).setValue(identifiers[i + 1]);
+    }
+    retVal.setUserData(RecordMerger.MEMBER, member);
+    return retVal;
+  }
+
+  private static List<String> members(Patient patient) {
+    return patient.getMeta().getTag().stream()
+        .filter(x -> RecordMerger.MEMBER_TAG_SYSTEM.equals(x.getSystem()))
+        .map(Coding::getCode)
+        .collect(Collectors.toList());
+  }
+}
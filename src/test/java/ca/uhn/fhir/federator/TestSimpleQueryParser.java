@@ -0,0 +1,88 @@
+package ca.uhn.fhir.federator;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.stream.Collectors;
+import org.junit.jupiter.api.Test;
+
+public class TestSimpleQueryParser {
+
+  private static final List<String> SIMPLE =
+      List.of(
+          "Patient",
+          "Patient?name=Sarah",
+          "Patient?name=Sarah,Jones&_count=10",
+          "Patient?name=Sarah&name=Jones",
+          "Patient?birthdate=1987-02-20",
+          "Patient?_id=23",
+          "Encounter?_id=1",
+          "Observation?_lastUpdated=gt2010",
+          "Patient?identifier=621338a9-01f4-49d4-b852-14507a8bf8c7",
+          "Patient?address-state=WA&gender=female,male");
+
+  private static final List<String> NOT_SIMPLE =
+      List.of(
+          "Patient?name:exact=Sarah",
+          "Patient?_has:Observation:patient:code=1234",
+          "Patient?_revinclude=Encounter:subject",
+          "Patient?name=Hodges&_include=Patient:organization",
+          "Encounter?subject=Patient/78a14cbe",
+          "Observation?value-quantity=5.4||mg",
+          "Observation?code=http://loinc.org|29463-7",
+          "Patient?general-practitioner:Practitioner.name=Sarah",
+          "Patient/23",
+          "Patient?name=",
+          "Patient?name=a,,b",
+          "Patient?_profile=Profile",
+          "Patient?name=_abc",
+          "Profile?name=a");
+
+  @Test
+  public void testSameAsParser() throws IOException {
+    List<String> queries = new ArrayList<>(SIMPLE);
+    queries.addAll(NOT_SIMPLE);
+    queries.addAll(FhirUrlParsing.readWarmUpQueries());
+    for (String query : queries) {
+      Optional<QueryPlan> plan = SimpleQueryParser.parse(query);
+      if (plan.isPresent()) {
+        assertEquals(toUrls(query), toUrls(plan.get()), query);
+      }
+    }
+  }
+
+  @Test
+  public void testRecognizesSimpleQueries() {
+    for (String query : SIMPLE) {
+      assertTrue(SimpleQueryParser.parse(query).isPresent(), query);
+    }
+    for (String query : NOT_SIMPLE) {
+      assertTrue(SimpleQueryParser.parse(query).isEmpty(), query);
+    }
+  }
+
+  private static List<List<ParsedUrl>> toUrls(QueryPlan plan) {
+    assertTrue(plan.getIncludeParameters().isEmpty());
+    return plan.getAndParameters().stream()
+        .map(QueryPlan.Parameter::getUrls)
+        .collect(Collectors.toList());
+  }
+
+  /** The URLs of the and parameters, as FederatedSearchProvider creates them with the parser. */
+  private static List<List<ParsedUrl>> toUrls(String query) throws IOException {
+    FhirUrlAnalyser visitor = TestFhirUrlParser.toVisitor(query);
+    assertTrue(visitor.getIncludeParameters().isEmpty());
+    return visitor.getAndParameters().stream()
+        .map(
+            httpParam ->
+                visitor.getResourcesForHttpParam(false, httpParam).stream()
+                    .map(resourceInParam -> new ParsedUrlCreator(resourceInParam, httpParam))
+                    .flatMap(creator -> creator.createUrl().stream())
+                    .collect(Collectors.toList()))
+        .collect(Collectors.toList());
+  }
+}